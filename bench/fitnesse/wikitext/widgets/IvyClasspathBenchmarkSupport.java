@@ -0,0 +1,92 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import fitnesse.wikitext.parser.Symbol;
+import fitnesse.wikitext.parser.SymbolType;
+import fitnesse.wikitext.parser.Translation;
+import fitnesse.wikitext.parser.Translator;
+
+/**
+ * Shared setup for the benchmarks: symbol types, symbols and files on disk.
+ */
+final class IvyClasspathBenchmarkSupport {
+
+    private IvyClasspathBenchmarkSupport() {
+    }
+
+    /**
+     * A translator that takes symbol content literally, so no wiki page is needed.
+     */
+    static final Translator TRANSLATOR = new Translator(null) {
+        @Override
+        public String translate(Symbol symbol) {
+            return symbol.getContent();
+        }
+
+        @Override
+        protected Translation getTranslation(SymbolType symbolType) {
+            return null;
+        }
+    };
+
+    /**
+     * @return a symbol type with a fresh in-memory cache and without a persistent store,
+     * so earlier runs do not influence the measurements.
+     */
+    static IvyClasspathSymbolType newSymbolType() {
+        return new IvyClasspathSymbolType(IvyClasspathCache.fromSystemProperties(), new IvyClasspathStore(null));
+    }
+
+    static Symbol resolveSymbol(IvyClasspathSymbolType symbolType, String dependencyPath, String settingsPath) {
+        Symbol symbol = new Symbol(symbolType);
+        symbol.add(new Symbol(SymbolType.Text, dependencyPath)
+                .putProperty(IvyClasspathSymbolType.OptionType.DEPENDENCY_FILE.name(), ""));
+        if (settingsPath != null) {
+            symbol.add(new Symbol(SymbolType.Text, settingsPath)
+                    .putProperty(IvyClasspathSymbolType.OptionType.IVY_SETTINGS_XML.name(), ""));
+        }
+        return symbol;
+    }
+
+    static File emptyIvyXml(File dir, String module) throws IOException {
+        return write(new File(dir, module + ".xml"), "<ivy-module version=\"2.0\">" +
+                "<info organisation=\"org.fitnesse.benchmark\" module=\"" + module + "\" revision=\"1.0\"/>" +
+                "<configurations><conf name=\"default\"/></configurations>" +
+                "</ivy-module>");
+    }
+
+    static File createTempDir() throws IOException {
+        File dir = File.createTempFile("ivy-benchmark", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Can not create directory " + dir);
+        }
+        return dir;
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    static File write(File file, String content) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Can not create directory " + parent);
+        }
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,58 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import fitnesse.wikitext.parser.Symbol;
+import fitnesse.wikitext.parser.Translator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link IvyClasspathSymbolType#getClasspathElements(Translator, Symbol)}
+ * when the classpath is already in the cache.
+ *
+ * <p>Run with <tt>ant benchmark</tt>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IvyClasspathCacheBenchmark {
+
+    private File dir;
+    private IvyClasspathSymbolType symbolType;
+    private Symbol symbol;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = IvyClasspathBenchmarkSupport.createTempDir();
+        symbolType = IvyClasspathBenchmarkSupport.newSymbolType();
+        symbol = IvyClasspathBenchmarkSupport.resolveSymbol(symbolType,
+                IvyClasspathBenchmarkSupport.emptyIvyXml(dir, "empty").getPath(), null);
+        // Resolve once, so every invocation is a cache hit
+        symbolType.getClasspathElements(IvyClasspathBenchmarkSupport.TRANSLATOR, symbol);
+    }
+
+    @TearDown
+    public void tearDown() {
+        IvyClasspathBenchmarkSupport.delete(dir);
+    }
+
+    @Benchmark
+    public List<File> cacheHit() throws IvyClasspathException {
+        return symbolType.getClasspathElements(IvyClasspathBenchmarkSupport.TRANSLATOR, symbol);
+    }
+}
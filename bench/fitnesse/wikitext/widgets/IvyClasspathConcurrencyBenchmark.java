@@ -0,0 +1,75 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fitnesse.wikitext.parser.Symbol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cache lookups from several threads at once, like a test farm running suites in parallel.
+ * The threads either all ask for the same classpath, or each picks one of <tt>keys</tt> classpaths.
+ * The number of threads can be changed with <tt>-Dbenchmark.args="-t 16"</tt>.
+ *
+ * <p>Run with <tt>ant benchmark</tt>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class IvyClasspathConcurrencyBenchmark {
+
+    @Param({"1", "64"})
+    int keys;
+
+    private File dir;
+    private IvyClasspathSymbolType symbolType;
+    private Symbol[] symbols;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = IvyClasspathBenchmarkSupport.createTempDir();
+        symbolType = IvyClasspathBenchmarkSupport.newSymbolType();
+        symbols = new Symbol[keys];
+        for (int i = 0; i < keys; i++) {
+            symbols[i] = IvyClasspathBenchmarkSupport.resolveSymbol(symbolType,
+                    IvyClasspathBenchmarkSupport.emptyIvyXml(dir, "module" + i).getPath(), null);
+            symbolType.getClasspathElements(IvyClasspathBenchmarkSupport.TRANSLATOR, symbols[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        IvyClasspathBenchmarkSupport.delete(dir);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private static final AtomicInteger THREADS = new AtomicInteger();
+        // Threads start at different keys, so they do not all hit the same entry
+        int next = THREADS.getAndIncrement();
+    }
+
+    @Benchmark
+    public List<File> cacheHit(Cursor cursor) throws IvyClasspathException {
+        Symbol symbol = symbols[(cursor.next++ & Integer.MAX_VALUE) % keys];
+        return symbolType.getClasspathElements(IvyClasspathBenchmarkSupport.TRANSLATOR, symbol);
+    }
+}
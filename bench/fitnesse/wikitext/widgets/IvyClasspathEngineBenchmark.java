@@ -0,0 +1,75 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resolve times with a cold Ivy engine (set up for every resolve) and a warm, pooled engine.
+ * The cache is bypassed, so every invocation does a full resolve against a generated repository on the
+ * local file system (see {@link IvyClasspathTestRepository}), for dependency graphs of different sizes. The graph of
+ * the last resolve is dropped before every invocation as well, or the warm engine would resolve incrementally, and
+ * with an unchanged descriptor not resolve at all.
+ *
+ * <p>Run with <tt>ant benchmark</tt>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class IvyClasspathEngineBenchmark {
+
+    @Param({"50", "500", "2000"})
+    int artifacts;
+
+    private File dir;
+    private String ivyXml;
+    private String settingsXml;
+    private IvyClasspathSymbolType warmSymbolType;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = IvyClasspathBenchmarkSupport.createTempDir();
+        IvyClasspathTestRepository repository = IvyClasspathTestRepository.ofSize(dir, artifacts).create();
+        settingsXml = repository.getSettingsFile().getPath();
+        ivyXml = repository.getIvyFile().getPath();
+        warmSymbolType = IvyClasspathBenchmarkSupport.newSymbolType();
+        // Fills the Ivy cache in the temp directory
+        warmSymbolType.resolve(ivyXml, settingsXml, "*", false);
+    }
+
+    @Setup(Level.Invocation)
+    public void forgetGraphs() {
+        warmSymbolType.forgetGraphs();
+    }
+
+    @TearDown
+    public void tearDown() {
+        IvyClasspathBenchmarkSupport.delete(dir);
+    }
+
+    @Benchmark
+    public IvyClasspathSymbolType.CacheElement coldEngine() throws IvyClasspathException {
+        return IvyClasspathBenchmarkSupport.newSymbolType().resolve(ivyXml, settingsXml, "*", false);
+    }
+
+    @Benchmark
+    public IvyClasspathSymbolType.CacheElement warmEngine() throws IvyClasspathException {
+        return warmSymbolType.resolve(ivyXml, settingsXml, "*", false);
+    }
+}
@@ -0,0 +1,65 @@
+package fitnesse.wikitext.widgets;
+
+import java.util.concurrent.TimeUnit;
+
+import fitnesse.wikitext.parser.Parser;
+import fitnesse.wikitext.parser.ParsingPage;
+import fitnesse.wikitext.parser.Symbol;
+import fitnesse.wikitext.parser.SymbolProvider;
+import fitnesse.wikitext.parser.VariableSource;
+import fitnesse.wikitext.parser.WikiSourcePage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.Maybe;
+
+/**
+ * Parsing of <tt>!resolve</tt> lines by the wiki parser, with {@link IvyClasspathSymbolType#parse}
+ * picking up the options.
+ *
+ * <p>Run with <tt>ant benchmark</tt>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IvyClasspathParseBenchmark {
+
+    @Param({
+        "!resolve",
+        "!resolve -c default,test -s ivysettings.xml ivy.xml",
+        "!resolve -pom -lock pom.lock core/pom.xml web/pom.xml tools/pom.xml"
+    })
+    String line;
+
+    private String input;
+
+    private final VariableSource variableSource = new VariableSource() {
+        @Override
+        public Maybe<String> findVariable(String name) {
+            return Maybe.noString;
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        SymbolProvider.wikiParsingProvider.add(IvyClasspathBenchmarkSupport.newSymbolType());
+        input = line + "\n";
+    }
+
+    @Benchmark
+    public Symbol parse() {
+        return Parser.make(new ParsingPage(new WikiSourcePage(null), variableSource), input,
+                SymbolProvider.wikiParsingProvider).parse();
+    }
+}
@@ -0,0 +1,87 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import fitnesse.wikitext.parser.Symbol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HTML rendering of a <tt>!resolve</tt> block ({@link IvyClasspathSymbolType#toTarget}) for classpaths
+ * of different sizes. The classpath is made up, so only the rendering is measured.
+ *
+ * <p><tt>toTarget</tt> renders the full list, which is rendered once per classpath and reused after that.
+ * <tt>toTargetSummary</tt> renders the summary shown for large classpaths, and <tt>renderClasspath</tt>
+ * measures rendering the list the first time.
+ *
+ * <p>Run with <tt>ant benchmark</tt>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IvyClasspathRenderBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    int classpathSize;
+
+    private List<File> classpath;
+    private IvyClasspathSymbolType symbolType;
+    private Symbol symbol;
+    private IvyClasspathSymbolType summarizingSymbolType;
+    private Symbol summarizedSymbol;
+
+    @Setup
+    public void setUp() throws Exception {
+        List<File> files = new ArrayList<File>(classpathSize);
+        for (int i = 0; i < classpathSize; i++) {
+            files.add(new File("/home/fitnesse/.ivy2/cache/org.fitnesse.benchmark" + i % 20 + "/lib" + i + "/jars/lib" + i + "-1.0.jar"));
+        }
+        classpath = Collections.unmodifiableList(files);
+        symbolType = newSymbolType();
+        symbolType.setSummaryThreshold(Integer.MAX_VALUE);
+        symbol = IvyClasspathBenchmarkSupport.resolveSymbol(symbolType, "ivy.xml", null);
+        summarizingSymbolType = newSymbolType();
+        summarizingSymbolType.setSummaryThreshold(0);
+        summarizedSymbol = IvyClasspathBenchmarkSupport.resolveSymbol(summarizingSymbolType, "ivy.xml", null);
+    }
+
+    private IvyClasspathSymbolType newSymbolType() {
+        return new IvyClasspathSymbolType(IvyClasspathCache.fromSystemProperties(), new IvyClasspathStore(null)) {
+            @Override
+            CacheElement resolve(String dependencyPath, String settingsPath, String configs, boolean isPom) {
+                return new CacheElement(Collections.<IvyClasspathFingerprint>emptyList(), classpath);
+            }
+        };
+    }
+
+    @Benchmark
+    public String toTarget() {
+        return symbolType.toTarget(IvyClasspathBenchmarkSupport.TRANSLATOR, symbol);
+    }
+
+    @Benchmark
+    public String toTargetSummary() {
+        return summarizingSymbolType.toTarget(IvyClasspathBenchmarkSupport.TRANSLATOR, summarizedSymbol);
+    }
+
+    @Benchmark
+    public String renderClasspath() {
+        return new IvyClasspathSymbolType.CacheElement(Collections.<IvyClasspathFingerprint>emptyList(), classpath).getHtml();
+    }
+}
@@ -0,0 +1,138 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * An immutable classpath. The artifacts are kept once, in a table shared by all classpaths, together with their
+ * absolute path. A classpath is an array of indexes in that table, so classpaths of different configurations and
+ * suites share their artifacts instead of holding copies.
+ *
+ * <p>The table only grows. It holds each artifact that has been on a classpath since FitNesse started, which
+ * is bounded by the size of the Ivy cache.
+ */
+final class IvyClasspath extends AbstractList<File> implements RandomAccess {
+
+    private static final Artifacts ARTIFACTS = new Artifacts();
+
+    static final IvyClasspath EMPTY = new IvyClasspath(new int[0]);
+
+    private final int[] artifacts;
+
+    private final List<String> paths = new AbstractList<String>() {
+        @Override
+        public String get(int index) {
+            return ARTIFACTS.path(artifacts[index]);
+        }
+
+        @Override
+        public int size() {
+            return artifacts.length;
+        }
+    };
+
+    private IvyClasspath(int[] artifacts) {
+        this.artifacts = artifacts;
+    }
+
+    /**
+     * @return a classpath with the given artifacts, in iteration order.
+     */
+    static IvyClasspath of(Collection<File> files) {
+        if (files instanceof IvyClasspath) {
+            return (IvyClasspath) files;
+        }
+        if (files.isEmpty()) {
+            return EMPTY;
+        }
+        int[] artifacts = new int[files.size()];
+        int i = 0;
+        for (File file: files) {
+            artifacts[i++] = ARTIFACTS.intern(file);
+        }
+        return new IvyClasspath(artifacts);
+    }
+
+    @Override
+    public File get(int index) {
+        return ARTIFACTS.file(artifacts[index]);
+    }
+
+    @Override
+    public int size() {
+        return artifacts.length;
+    }
+
+    /**
+     * @return the absolute paths of the artifacts. The list is a read only view, nothing is copied.
+     */
+    List<String> getPaths() {
+        return paths;
+    }
+
+    /**
+     * @return the number of distinct artifacts known to all classpaths.
+     */
+    static int getArtifactCount() {
+        return ARTIFACTS.size();
+    }
+
+    private static class Artifacts {
+        private final Map<File, Integer> indexes = new HashMap<File, Integer>();
+        // Replaced after each change, so readers see the arrays and their entries up to its size together
+        private volatile Table table = new Table(new File[256], new String[256], 0);
+
+        synchronized int intern(File file) {
+            Integer index = indexes.get(file);
+            if (index != null) {
+                return index;
+            }
+            Table current = table;
+            int next = current.size;
+            File[] files = current.files;
+            String[] paths = current.paths;
+            if (next == files.length) {
+                files = Arrays.copyOf(files, next * 2);
+                paths = Arrays.copyOf(paths, next * 2);
+            }
+            // Slots beyond the published size are not read, so they can be filled in place
+            files[next] = file;
+            paths[next] = file.getAbsolutePath();
+            indexes.put(file, next);
+            table = new Table(files, paths, next + 1);
+            return next;
+        }
+
+        File file(int index) {
+            Table current = table;
+            return current.size > index ? current.files[index] : null;
+        }
+
+        String path(int index) {
+            Table current = table;
+            return current.size > index ? current.paths[index] : null;
+        }
+
+        int size() {
+            return table.size;
+        }
+    }
+
+    private static class Table {
+        final File[] files;
+        final String[] paths;
+        final int size;
+
+        Table(File[] files, String[] paths, int size) {
+            this.files = files;
+            this.paths = paths;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package fitnesse.wikitext.widgets;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.ivy.util.MessageLogger;
+
+/**
+ * In-memory classpath cache, with a least-recently-used eviction policy.
+ *
+ * <p>The cache is bounded by the number of entries and by the total number of paths in all cached
+ * classpaths. The limits can be set with the system properties <tt>ivy.classpath.maxentries</tt>
+ * and <tt>ivy.classpath.maxpaths</tt>.
+ *
+ * <p>An entry goes stale when its input files change, or once it's older than the time-to-live
+ * (<tt>ivy.classpath.ttl</tt>, in seconds, default: no limit). A stale entry is still handed out by
+ * {@link #get(String)} for at most <tt>ivy.classpath.maxstale</tt> seconds (default 0), so it can be
+ * resolved again in the background while it's being used.
+ */
+class IvyClasspathCache {
+
+    static final String MAX_ENTRIES_PROPERTY = "ivy.classpath.maxentries";
+    static final String MAX_PATHS_PROPERTY = "ivy.classpath.maxpaths";
+    static final String TTL_PROPERTY = "ivy.classpath.ttl";
+    static final String MAX_STALE_PROPERTY = "ivy.classpath.maxstale";
+    private static final int DEFAULT_MAX_ENTRIES = 256;
+    private static final int DEFAULT_MAX_PATHS = 50000;
+    // A failed refresh of a stale entry is tried again after this time, or after the time-to-live if that's shorter
+    private static final long RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final MessageLogger LOGGER = new IvyClasspathMessageLogger();
+
+    private final int maxEntries;
+    private final int maxPaths;
+
+    // Access ordered, so the first entry is the least recently used one
+    private final LinkedHashMap<String, IvyClasspathSymbolType.CacheElement> entries =
+            new LinkedHashMap<String, IvyClasspathSymbolType.CacheElement>(16, 0.75f, true);
+    private int paths;
+
+    private volatile long ttlMillis;
+    private volatile long maxStaleMillis;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadTime = new AtomicLong();
+
+    IvyClasspathCache(int maxEntries, int maxPaths) {
+        this.maxEntries = maxEntries;
+        this.maxPaths = maxPaths;
+    }
+
+    static IvyClasspathCache fromSystemProperties() {
+        IvyClasspathCache cache = new IvyClasspathCache(intProperty(MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES),
+                intProperty(MAX_PATHS_PROPERTY, DEFAULT_MAX_PATHS));
+        cache.setStaleWhileRevalidate(intProperty(TTL_PROPERTY, 0), intProperty(MAX_STALE_PROPERTY, 0), TimeUnit.SECONDS);
+        return cache;
+    }
+
+    /**
+     * @param ttl the time after which an entry is stale, 0 for no limit
+     * @param maxStale the time a stale entry is still handed out, 0 to drop entries as soon as they are stale
+     */
+    void setStaleWhileRevalidate(long ttl, long maxStale, TimeUnit unit) {
+        ttlMillis = unit.toMillis(ttl);
+        maxStaleMillis = unit.toMillis(maxStale);
+    }
+
+    private static int intProperty(String name, int defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null || "".equals(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid value for " + name + ": " + value + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * @return the cached classpath, or null if it's not in the cache or if it's out of date. A stale classpath
+     * is returned as long as it's been stale for no longer than the maximum staleness; check with
+     * {@link IvyClasspathSymbolType.CacheElement#isStale()}.
+     */
+    IvyClasspathSymbolType.CacheElement get(String cacheKey) {
+        IvyClasspathSymbolType.CacheElement element;
+        synchronized (this) {
+            element = entries.get(cacheKey);
+        }
+        if (element != null) {
+            long now = System.currentTimeMillis();
+            if (fresh(element, now)) {
+                hits.incrementAndGet();
+                return element;
+            }
+            if (maxStaleMillis > 0 && now - element.getStaleSince() <= maxStaleMillis) {
+                staleHits.incrementAndGet();
+                return element;
+            }
+            remove(cacheKey, element);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Like {@link #get(String)}, but without updating the statistics, and only if the classpath is not stale.
+     */
+    IvyClasspathSymbolType.CacheElement peek(String cacheKey) {
+        IvyClasspathSymbolType.CacheElement element;
+        synchronized (this) {
+            element = entries.get(cacheKey);
+        }
+        return element != null && fresh(element, System.currentTimeMillis()) ? element : null;
+    }
+
+    private boolean fresh(IvyClasspathSymbolType.CacheElement element, long now) {
+        if (element.isStale()) {
+            return false;
+        }
+        if (expired(element, now)) {
+            element.markStale(element.created + ttlMillis);
+            return false;
+        }
+        if (element.modified()) {
+            element.markStale(now);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean expired(IvyClasspathSymbolType.CacheElement element, long now) {
+        long ttl = ttlMillis;
+        return ttl > 0 && now - element.created >= ttl;
+    }
+
+    /**
+     * @return true if the classpath is older than the time-to-live.
+     */
+    boolean isExpired(IvyClasspathSymbolType.CacheElement element) {
+        return expired(element, System.currentTimeMillis());
+    }
+
+    /**
+     * @return the time to wait before a failed refresh of a stale classpath is tried again.
+     */
+    long getRetryMillis() {
+        long ttl = ttlMillis;
+        return ttl > 0 ? Math.min(ttl, RETRY_MILLIS) : RETRY_MILLIS;
+    }
+
+    synchronized void put(String cacheKey, IvyClasspathSymbolType.CacheElement element) {
+        IvyClasspathSymbolType.CacheElement previous = entries.put(cacheKey, element);
+        if (previous != null) {
+            paths -= previous.dependencies.size();
+        }
+        paths += element.dependencies.size();
+        evict();
+    }
+
+    /**
+     * Replace a classpath, unless it has been replaced already.
+     */
+    synchronized boolean replace(String cacheKey, IvyClasspathSymbolType.CacheElement expected,
+                                 IvyClasspathSymbolType.CacheElement element) {
+        if (entries.get(cacheKey) != expected) {
+            return false;
+        }
+        put(cacheKey, element);
+        return true;
+    }
+
+    private synchronized void remove(String cacheKey, IvyClasspathSymbolType.CacheElement element) {
+        if (entries.get(cacheKey) == element) {
+            entries.remove(cacheKey);
+            paths -= element.dependencies.size();
+        }
+    }
+
+    private void evict() {
+        // Never evict the most recent entry, even if it's larger than the limit by itself
+        Iterator<Map.Entry<String, IvyClasspathSymbolType.CacheElement>> i = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || paths > maxPaths) && entries.size() > 1) {
+            IvyClasspathSymbolType.CacheElement eldest = i.next().getValue();
+            i.remove();
+            paths -= eldest.dependencies.size();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Register the time it took to load (resolve) a classpath that was not in the cache.
+     */
+    void recordLoad(long nanos) {
+        loads.incrementAndGet();
+        loadTime.addAndGet(nanos);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized int pathCount() {
+        return paths;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of times a stale classpath was handed out.
+     */
+    long getStaleHits() {
+        return staleHits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    long getLoads() {
+        return loads.get();
+    }
+
+    long getLoadTimeNanos() {
+        return loadTime.get();
+    }
+
+    @Override
+    public String toString() {
+        return "IvyClasspathCache[entries=" + size() + ", paths=" + pathCount() + ", hits=" + getHits() + ", staleHits=" + getStaleHits() +
+                ", misses=" + getMisses() + ", evictions=" + getEvictions() + ", loads=" + getLoads() +
+                ", loadTime=" + (getLoadTimeNanos() / 1000000) + "ms]";
+    }
+}
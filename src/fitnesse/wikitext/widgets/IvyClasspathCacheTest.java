@@ -0,0 +1,171 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class IvyClasspathCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void evictsLeastRecentlyUsedEntry() throws IOException {
+        IvyClasspathCache cache = new IvyClasspathCache(2, 100);
+        cache.put("a", element(1));
+        cache.put("b", element(1));
+        cache.get("a");
+        cache.put("c", element(1));
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void evictsUntilPathCountFits() throws IOException {
+        IvyClasspathCache cache = new IvyClasspathCache(10, 5);
+        cache.put("a", element(2));
+        cache.put("b", element(2));
+        cache.put("c", element(2));
+        cache.put("d", element(3));
+
+        assertNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(5, cache.pathCount());
+        assertNotNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+        assertEquals(2, cache.getEvictions());
+    }
+
+    @Test
+    public void keepsNewestEntryEvenIfItExceedsTheLimit() throws IOException {
+        IvyClasspathCache cache = new IvyClasspathCache(10, 5);
+        cache.put("a", element(8));
+
+        assertNotNull(cache.get("a"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void replacingAnEntryUpdatesThePathCount() throws IOException {
+        IvyClasspathCache cache = new IvyClasspathCache(10, 100);
+        cache.put("a", element(4));
+        cache.put("a", element(2));
+
+        assertEquals(2, cache.pathCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void countsHitsAndMisses() throws IOException {
+        IvyClasspathCache cache = new IvyClasspathCache(10, 100);
+        cache.get("a");
+        cache.put("a", element(1));
+        cache.get("a");
+        cache.get("a");
+        cache.peek("a");
+        cache.recordLoad(5);
+        cache.recordLoad(7);
+
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getLoads());
+        assertEquals(12, cache.getLoadTimeNanos());
+    }
+
+    @Test
+    public void modifiedEntryIsAMissAndIsRemoved() throws IOException {
+        File ivyFile = write("ivy.xml", "<ivy-module/>");
+        IvyClasspathCache cache = new IvyClasspathCache(10, 100);
+        cache.put("a", new IvyClasspathSymbolType.CacheElement(
+                Collections.singletonList(IvyClasspathFingerprint.of(ivyFile)), new ArrayList<File>()));
+
+        write("ivy.xml", "<ivy-module version='2.0'/>");
+
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void servesModifiedEntryUntilMaxStaleness() throws Exception {
+        File ivyFile = write("ivy.xml", "<ivy-module/>");
+        IvyClasspathCache cache = new IvyClasspathCache(10, 100);
+        cache.setStaleWhileRevalidate(0, 200, TimeUnit.MILLISECONDS);
+        IvyClasspathSymbolType.CacheElement element = new IvyClasspathSymbolType.CacheElement(
+                Collections.singletonList(IvyClasspathFingerprint.of(ivyFile)), new ArrayList<File>());
+        cache.put("a", element);
+
+        write("ivy.xml", "<ivy-module version='2.0'/>");
+
+        assertSame(element, cache.get("a"));
+        assertTrue(element.isStale());
+        assertNull("only fresh entries are peeked", cache.peek("a"));
+        assertEquals(1, cache.getStaleHits());
+        Thread.sleep(250);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void entryExpiresAfterTimeToLive() throws Exception {
+        IvyClasspathCache cache = new IvyClasspathCache(10, 100);
+        cache.setStaleWhileRevalidate(100, 1000, TimeUnit.MILLISECONDS);
+        IvyClasspathSymbolType.CacheElement element = element(1);
+        cache.put("a", element);
+
+        assertSame(element, cache.get("a"));
+        assertFalse(element.isStale());
+        Thread.sleep(150);
+
+        assertSame(element, cache.get("a"));
+        assertTrue(cache.isExpired(element));
+        assertEquals(element.created + 100, element.getStaleSince());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getStaleHits());
+    }
+
+    @Test
+    public void replacesOnlyTheExpectedEntry() throws IOException {
+        IvyClasspathCache cache = new IvyClasspathCache(10, 100);
+        IvyClasspathSymbolType.CacheElement first = element(1);
+        IvyClasspathSymbolType.CacheElement second = element(2);
+        cache.put("a", first);
+
+        assertTrue(cache.replace("a", first, second));
+        assertFalse(cache.replace("a", first, element(3)));
+        assertSame(second, cache.get("a"));
+        assertEquals(2, cache.pathCount());
+    }
+
+    private IvyClasspathSymbolType.CacheElement element(int pathCount) {
+        List<File> dependencies = new ArrayList<File>();
+        for (int i = 0; i < pathCount; i++) {
+            dependencies.add(new File("lib" + i + ".jar"));
+        }
+        return new IvyClasspathSymbolType.CacheElement(Collections.<IvyClasspathFingerprint>emptyList(), dependencies);
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
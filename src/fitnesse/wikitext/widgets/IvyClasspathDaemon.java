@@ -0,0 +1,207 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.ivy.util.MessageLogger;
+
+/**
+ * Resolves classpaths for the FitNesse servers on the same host, so they share one cache, one set of
+ * warm Ivy engines, and don't fight over the lock files of the Ivy cache.
+ *
+ * <p>Start the daemon with
+ * <pre>
+ * java -cp fitnesse.jar:ivy.jar:fitnesse-ivy-classpath.jar fitnesse.wikitext.widgets.IvyClasspathDaemon [port]
+ * </pre>
+ * and the FitNesse servers with <tt>-Divy.classpath.daemon=&lt;port&gt;</tt>, see {@link IvyClasspathDaemonClient}.
+ * The daemon only listens on the loopback interface. Requests for the same classpath, from any client, wait for
+ * one resolve.
+ *
+ * <p>Both sides talk a line-oriented protocol, one request per connection. The request:
+ * <pre>
+ * # fitnesse-ivy-classpath daemon 1
+ * file     &lt;ivy/pom file&gt;
+ * settings &lt;settings file&gt;     (optional)
+ * configs  &lt;configurations&gt;
+ * pom                          (optional)
+ * end
+ * </pre>
+ * The response holds the classpath and what it was resolved from, in the format of {@link IvyClasspathStore},
+ * or the problems if it could not be resolved:
+ * <pre>
+ * # fitnesse-ivy-classpath daemon 1
+ * input    &lt;length&gt; &lt;last modified&gt; &lt;sha1&gt; &lt;path&gt;
+ * artifact &lt;path&gt;
+ * message  &lt;warning of the resolve&gt;
+ * problem  &lt;problem&gt;
+ * end
+ * </pre>
+ * (fields are separated by tabs).
+ */
+public class IvyClasspathDaemon implements Runnable {
+
+    static final String HEADER = "# fitnesse-ivy-classpath daemon 1";
+    static final String FILE = "file";
+    static final String SETTINGS = "settings";
+    static final String CONFIGS = "configs";
+    static final String POM = "pom";
+    static final String INPUT = "input";
+    static final String ARTIFACT = "artifact";
+    static final String MESSAGE = "message";
+    static final String PROBLEM = "problem";
+    static final String END = "end";
+    static final int DEFAULT_PORT = 28080;
+
+    private static final MessageLogger LOGGER = new IvyClasspathMessageLogger();
+
+    private final IvyClasspathSymbolType symbolType;
+    private final ServerSocket serverSocket;
+    private final ExecutorService handlers = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ivy-classpath-daemon-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * @param port the port to listen on, 0 for any free port.
+     */
+    IvyClasspathDaemon(IvyClasspathSymbolType symbolType, int port) throws IOException {
+        this.symbolType = symbolType;
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accept requests on a background thread.
+     */
+    IvyClasspathDaemon start() {
+        Thread acceptor = new Thread(this, "ivy-classpath-daemon");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return this;
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    LOGGER.warn("Ivy classpath daemon: unable to accept a connection: " + e.getMessage());
+                }
+                continue;
+            }
+            handlers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handle(socket);
+                }
+            });
+        }
+    }
+
+    void close() throws IOException {
+        serverSocket.close();
+        handlers.shutdown();
+    }
+
+    private void handle(Socket socket) {
+        try {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+                writer.write(HEADER + "\n");
+                try {
+                    IvyClasspathSymbolType.CacheElement element = resolve(reader);
+                    for (IvyClasspathFingerprint input: element.inputs) {
+                        writer.write(INPUT + "\t" + input.format() + "\n");
+                    }
+                    for (String path: element.dependencies.getPaths()) {
+                        writer.write(ARTIFACT + "\t" + path + "\n");
+                    }
+                    for (String message: element.messages) {
+                        writer.write(MESSAGE + "\t" + oneLine(message) + "\n");
+                    }
+                } catch (IvyClasspathException e) {
+                    for (String problem: e.getProblems()) {
+                        writer.write(PROBLEM + "\t" + oneLine(problem) + "\n");
+                    }
+                }
+                writer.write(END + "\n");
+                writer.flush();
+            } finally {
+                socket.close();
+            }
+        } catch (SocketException e) {
+            // The client went away
+        } catch (IOException e) {
+            LOGGER.warn("Ivy classpath daemon: unable to handle a request: " + e.getMessage());
+        }
+    }
+
+    private IvyClasspathSymbolType.CacheElement resolve(BufferedReader reader) throws IOException, IvyClasspathException {
+        if (!HEADER.equals(reader.readLine())) {
+            throw new IvyClasspathException("Unsupported request, expected \"" + HEADER + "\"");
+        }
+        String dependencyPath = null;
+        String settingsPath = null;
+        String configs = null;
+        boolean isPom = false;
+        String line;
+        while ((line = reader.readLine()) != null && !END.equals(line)) {
+            String[] fields = line.split("\t", 2);
+            if (FILE.equals(fields[0]) && fields.length == 2) {
+                dependencyPath = fields[1];
+            } else if (SETTINGS.equals(fields[0]) && fields.length == 2) {
+                settingsPath = fields[1];
+            } else if (CONFIGS.equals(fields[0]) && fields.length == 2) {
+                configs = fields[1];
+            } else if (POM.equals(fields[0])) {
+                isPom = true;
+            }
+        }
+        if (line == null) {
+            throw new IOException("Incomplete request");
+        }
+        if (dependencyPath == null || configs == null) {
+            throw new IvyClasspathException("Incomplete request, the ivy/pom file and configurations are required");
+        }
+        return symbolType.getCacheElement(dependencyPath, settingsPath, configs, isPom, null);
+    }
+
+    static String oneLine(String text) {
+        return text.replace('\r', ' ').replace('\n', ' ');
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        IvyClasspathSymbolType symbolType = new IvyClasspathSymbolType(IvyClasspathCache.fromSystemProperties(),
+                IvyClasspathStore.fromSystemProperties());
+        symbolType.register();
+        IvyClasspathDaemon daemon = new IvyClasspathDaemon(symbolType, port);
+        System.out.println("Ivy classpath daemon listening on port " + daemon.getPort());
+        daemon.run();
+    }
+}
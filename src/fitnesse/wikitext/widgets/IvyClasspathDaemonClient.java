@@ -0,0 +1,136 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.ivy.util.MessageLogger;
+
+/**
+ * Has classpaths resolved by an {@link IvyClasspathDaemon} on the same host.
+ *
+ * <p>Enabled with the system property <tt>ivy.classpath.daemon</tt>, set to the port of the daemon.
+ * A resolve waits up to <tt>ivy.classpath.daemon.timeout</tt> seconds (default 600) for the daemon.
+ * If the daemon can't be reached, or does not answer in time, the classpath is resolved in-process.
+ */
+class IvyClasspathDaemonClient {
+
+    static final String DAEMON_PROPERTY = "ivy.classpath.daemon";
+    static final String TIMEOUT_PROPERTY = "ivy.classpath.daemon.timeout";
+    private static final int DEFAULT_TIMEOUT = 600;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    private static final MessageLogger LOGGER = new IvyClasspathMessageLogger();
+
+    private final int port;
+    private final int timeoutMillis;
+
+    IvyClasspathDaemonClient(int port, int timeoutMillis) {
+        this.port = port;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @return the client configured by the system properties, or null if no daemon is used.
+     */
+    static IvyClasspathDaemonClient fromSystemProperties() {
+        String port = System.getProperty(DAEMON_PROPERTY);
+        if (port == null || "".equals(port.trim())) {
+            return null;
+        }
+        try {
+            return new IvyClasspathDaemonClient(Integer.parseInt(port.trim()),
+                    Integer.getInteger(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT) * 1000);
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Ignoring " + DAEMON_PROPERTY + ", not a port number: " + port);
+            return null;
+        }
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    /**
+     * @throws IOException if the daemon could not be reached or did not answer
+     * @throws IvyClasspathException if the daemon could not resolve the classpath
+     */
+    IvyClasspathSymbolType.CacheElement resolve(String dependencyPath, String settingsPath, String configs, boolean isPom)
+            throws IOException, IvyClasspathException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getByName(null), port), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(timeoutMillis);
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+            StringBuilder request = new StringBuilder(256).append(IvyClasspathDaemon.HEADER).append('\n');
+            request.append(IvyClasspathDaemon.FILE).append('\t').append(absolute(dependencyPath)).append('\n');
+            if (settingsPath != null) {
+                request.append(IvyClasspathDaemon.SETTINGS).append('\t').append(absolute(settingsPath)).append('\n');
+            }
+            request.append(IvyClasspathDaemon.CONFIGS).append('\t').append(IvyClasspathDaemon.oneLine(configs)).append('\n');
+            if (isPom) {
+                request.append(IvyClasspathDaemon.POM).append('\n');
+            }
+            request.append(IvyClasspathDaemon.END).append('\n');
+            writer.write(request.toString());
+            writer.flush();
+            return readResponse(new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8")));
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static IvyClasspathSymbolType.CacheElement readResponse(BufferedReader reader) throws IOException, IvyClasspathException {
+        if (!IvyClasspathDaemon.HEADER.equals(reader.readLine())) {
+            throw new IOException("Not an Ivy classpath daemon, or another version");
+        }
+        List<IvyClasspathFingerprint> inputs = new ArrayList<IvyClasspathFingerprint>();
+        List<File> artifacts = new ArrayList<File>();
+        List<String> messages = new ArrayList<String>();
+        List<String> problems = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null && !IvyClasspathDaemon.END.equals(line)) {
+            String[] fields = line.split("\t", 2);
+            if (fields.length < 2) {
+                continue;
+            }
+            if (IvyClasspathDaemon.INPUT.equals(fields[0])) {
+                IvyClasspathFingerprint input = IvyClasspathFingerprint.parse(fields[1]);
+                if (input == null) {
+                    throw new IOException("Invalid input in response: " + fields[1]);
+                }
+                inputs.add(input);
+            } else if (IvyClasspathDaemon.ARTIFACT.equals(fields[0])) {
+                artifacts.add(new File(fields[1]));
+            } else if (IvyClasspathDaemon.MESSAGE.equals(fields[0])) {
+                messages.add(fields[1]);
+            } else if (IvyClasspathDaemon.PROBLEM.equals(fields[0])) {
+                problems.add(fields[1]);
+            }
+        }
+        if (line == null) {
+            throw new IOException("Incomplete response");
+        }
+        if (!problems.isEmpty()) {
+            throw new IvyClasspathException(problems);
+        }
+        return new IvyClasspathSymbolType.CacheElement(Collections.unmodifiableList(inputs), artifacts,
+                messages.isEmpty() ? Collections.<String>emptyList() : Collections.unmodifiableList(messages));
+    }
+
+    /**
+     * The daemon has its own working directory. Paths with Ivy variables are sent as they are.
+     */
+    private static String absolute(String path) {
+        return path.contains("${") ? path : new File(path).getAbsolutePath();
+    }
+}
@@ -0,0 +1,97 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class IvyClasspathDaemonTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private IvyClasspathTestRepository repository;
+    private IvyClasspathSymbolType daemonSide;
+    private IvyClasspathDaemon daemon;
+
+    @Before
+    public void startDaemon() throws Exception {
+        repository = new IvyClasspathTestRepository(folder.getRoot(), 2, 2, 3).create();
+        daemonSide = newSymbolType();
+        daemon = new IvyClasspathDaemon(daemonSide, 0).start();
+    }
+
+    @After
+    public void stopDaemon() throws Exception {
+        daemon.close();
+    }
+
+    @Test
+    public void resolvesThroughTheDaemon() throws Exception {
+        IvyClasspathSymbolType client = newClient(daemon.getPort());
+
+        List<File> classpath = resolve(client);
+
+        assertEquals(resolve(newSymbolType()), classpath);
+        assertEquals(1, daemonSide.getMetrics().getResolves());
+    }
+
+    @Test
+    public void clientsShareResolves() throws Exception {
+        List<File> first = resolve(newClient(daemon.getPort()));
+        List<File> second = resolve(newClient(daemon.getPort()));
+
+        assertEquals(first, second);
+        assertEquals(1, daemonSide.getMetrics().getResolves());
+        assertEquals(1, daemonSide.getMetrics().getCacheHits());
+    }
+
+    @Test
+    public void daemonReportsProblems() throws Exception {
+        IvyClasspathSymbolType client = newClient(daemon.getPort());
+        String missing = new File(folder.getRoot(), "missing.xml").getPath();
+
+        try {
+            client.getClasspathElements(missing, null, "*", false, null);
+            fail("Should not resolve a missing file");
+        } catch (IvyClasspathException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Ivy/pom file not found: "));
+        }
+        assertEquals(1, daemonSide.getMetrics().getResolveFailures());
+    }
+
+    @Test
+    public void resolvesInProcessIfTheDaemonIsNotAvailable() throws Exception {
+        ServerSocket unused = new ServerSocket(0);
+        int port = unused.getLocalPort();
+        unused.close();
+        IvyClasspathSymbolType client = newClient(port);
+
+        List<File> classpath = resolve(client);
+
+        assertEquals(repository.getArtifactCount(), classpath.size());
+        assertEquals(0, daemonSide.getMetrics().getResolves());
+    }
+
+    private IvyClasspathSymbolType newClient(int port) {
+        IvyClasspathSymbolType client = newSymbolType();
+        client.setDaemon(new IvyClasspathDaemonClient(port, 60000));
+        return client;
+    }
+
+    private static IvyClasspathSymbolType newSymbolType() {
+        return new IvyClasspathSymbolType(IvyClasspathCache.fromSystemProperties(), new IvyClasspathStore(null));
+    }
+
+    private List<File> resolve(IvyClasspathSymbolType symbolType) throws IvyClasspathException {
+        return symbolType.getClasspathElements(repository.getIvyFile().getPath(), repository.getSettingsFile().getPath(),
+                "default", false, null);
+    }
+}
@@ -0,0 +1,214 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.ivy.core.RelativeUrlResolver;
+import org.apache.ivy.core.cache.DefaultRepositoryCacheManager;
+import org.apache.ivy.core.cache.RepositoryCacheManager;
+import org.apache.ivy.core.cache.ResolutionCacheManager;
+import org.apache.ivy.core.module.descriptor.ModuleDescriptor;
+import org.apache.ivy.core.module.id.ModuleId;
+import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.core.module.status.StatusManager;
+import org.apache.ivy.core.settings.IvySettings;
+import org.apache.ivy.plugins.conflict.ConflictManager;
+import org.apache.ivy.plugins.matcher.PatternMatcher;
+import org.apache.ivy.plugins.namespace.Namespace;
+import org.apache.ivy.plugins.parser.ParserSettings;
+import org.apache.ivy.plugins.parser.m2.PomModuleDescriptorParser;
+import org.apache.ivy.plugins.resolver.DependencyResolver;
+
+/**
+ * Parsed POMs, shared by all <tt>!resolve -pom</tt> directives with the same settings file.
+ *
+ * <p>Parsing a POM means parsing its parent POMs and imported BOMs as well. Modules of a multi-module project
+ * share those, so they are parsed again for every module. Here a parsed POM is kept with the fingerprints of
+ * the file, of the parent and imported POMs Ivy looked up while parsing it (their copy in the Ivy cache), and
+ * of the settings. It's parsed again only if one of them changed.
+ *
+ * <p>A POM with a parent or import that can't be fingerprinted (no copy in the cache, or a dynamic revision)
+ * is not kept.
+ */
+class IvyClasspathDescriptors {
+
+    private static final int MAX_DESCRIPTORS = 256;
+
+    // By settings key and POM file, least recently used first
+    private final Map<String, Parsed> descriptors = new LinkedHashMap<String, Parsed>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Parsed> eldest) {
+            return size() > MAX_DESCRIPTORS;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong parses = new AtomicLong();
+
+    /**
+     * @param settingsKey identifies the settings the POM is parsed with
+     * @param settingsInputs fingerprints of the settings file and the files it includes
+     */
+    ModuleDescriptor parsePom(IvySettings settings, String settingsKey, List<IvyClasspathFingerprint> settingsInputs,
+                              File pomFile) throws ParseException, IOException {
+        String key = settingsKey + "#" + pomFile.getAbsolutePath();
+        Parsed parsed;
+        synchronized (descriptors) {
+            parsed = descriptors.get(key);
+        }
+        if (parsed != null && !parsed.modified()) {
+            hits.incrementAndGet();
+            return parsed.descriptor;
+        }
+
+        IvyClasspathFingerprint pom = IvyClasspathFingerprint.of(pomFile);
+        RecordingParserSettings recording = new RecordingParserSettings(settings);
+        ModuleDescriptor md = PomModuleDescriptorParser.getInstance().parseDescriptor(recording, pomFile.toURI().toURL(), true);
+        parses.incrementAndGet();
+
+        List<IvyClasspathFingerprint> inputs = new ArrayList<IvyClasspathFingerprint>(settingsInputs);
+        inputs.add(pom);
+        List<IvyClasspathFingerprint> parents = fingerprintParents(settings, recording.getLookups(md.getModuleRevisionId()));
+        synchronized (descriptors) {
+            if (parents != null) {
+                inputs.addAll(parents);
+                descriptors.put(key, new Parsed(md, inputs));
+            } else {
+                descriptors.remove(key);
+            }
+        }
+        return md;
+    }
+
+    /**
+     * @return the fingerprints of the parent and imported POMs in the Ivy cache, or null if one of them
+     * can't be fingerprinted.
+     */
+    private static List<IvyClasspathFingerprint> fingerprintParents(IvySettings settings, Set<ModuleRevisionId> parents)
+            throws IOException {
+        List<IvyClasspathFingerprint> fingerprints = new ArrayList<IvyClasspathFingerprint>(parents.size());
+        for (ModuleRevisionId parent: parents) {
+            if (settings.getVersionMatcher().isDynamic(parent)) {
+                return null;
+            }
+            DependencyResolver resolver = settings.getResolver(parent);
+            RepositoryCacheManager cacheManager = resolver != null ? resolver.getRepositoryCacheManager() : null;
+            if (!(cacheManager instanceof DefaultRepositoryCacheManager)) {
+                return null;
+            }
+            File ivyFile = ((DefaultRepositoryCacheManager) cacheManager).getIvyFileInCache(parent);
+            if (!ivyFile.isFile()) {
+                return null;
+            }
+            fingerprints.add(IvyClasspathFingerprint.of(ivyFile));
+        }
+        return fingerprints;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getParses() {
+        return parses.get();
+    }
+
+    private static class Parsed {
+        final ModuleDescriptor descriptor;
+        final List<IvyClasspathFingerprint> inputs;
+
+        Parsed(ModuleDescriptor descriptor, List<IvyClasspathFingerprint> inputs) {
+            this.descriptor = descriptor;
+            this.inputs = inputs;
+        }
+
+        boolean modified() {
+            for (IvyClasspathFingerprint input: inputs) {
+                if (!input.matches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The settings, keeping track of the modules the parser looks up: the parent and imported POMs.
+     */
+    private static class RecordingParserSettings implements ParserSettings {
+        private final IvySettings settings;
+        private final Set<ModuleRevisionId> lookups = Collections.synchronizedSet(new LinkedHashSet<ModuleRevisionId>());
+
+        RecordingParserSettings(IvySettings settings) {
+            this.settings = settings;
+        }
+
+        /**
+         * @return the modules looked up, except the module itself (looked up for its sources and javadoc).
+         */
+        Set<ModuleRevisionId> getLookups(ModuleRevisionId self) {
+            Set<ModuleRevisionId> others = new LinkedHashSet<ModuleRevisionId>(lookups);
+            others.remove(self);
+            return others;
+        }
+
+        public DependencyResolver getResolver(ModuleRevisionId mRevId) {
+            lookups.add(mRevId);
+            return settings.getResolver(mRevId);
+        }
+
+        public String substitute(String value) {
+            return settings.substitute(value);
+        }
+
+        @SuppressWarnings("rawtypes")
+        public Map substitute(Map strings) {
+            return settings.substitute(strings);
+        }
+
+        public ResolutionCacheManager getResolutionCacheManager() {
+            return settings.getResolutionCacheManager();
+        }
+
+        public ConflictManager getConflictManager(String name) {
+            return settings.getConflictManager(name);
+        }
+
+        public PatternMatcher getMatcher(String matcherName) {
+            return settings.getMatcher(matcherName);
+        }
+
+        public Namespace getNamespace(String namespace) {
+            return settings.getNamespace(namespace);
+        }
+
+        public StatusManager getStatusManager() {
+            return settings.getStatusManager();
+        }
+
+        public RelativeUrlResolver getRelativeUrlResolver() {
+            return settings.getRelativeUrlResolver();
+        }
+
+        public File resolveFile(String filename) {
+            return settings.resolveFile(filename);
+        }
+
+        public String getDefaultBranch(ModuleId moduleId) {
+            return settings.getDefaultBranch(moduleId);
+        }
+
+        public Namespace getContextNamespace() {
+            return settings.getContextNamespace();
+        }
+    }
+}
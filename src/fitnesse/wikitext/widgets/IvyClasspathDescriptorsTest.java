@@ -0,0 +1,142 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.ivy.Ivy;
+import org.apache.ivy.core.cache.DefaultRepositoryCacheManager;
+import org.apache.ivy.core.module.descriptor.ModuleDescriptor;
+import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.core.settings.IvySettings;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class IvyClasspathDescriptorsTest {
+
+    private static final String SETTINGS_KEY = "ivysettings.xml";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final IvyClasspathDescriptors descriptors = new IvyClasspathDescriptors();
+    private final List<IvyClasspathFingerprint> settingsInputs = Collections.emptyList();
+    private Ivy ivy;
+    private File pom;
+
+    @Before
+    public void createRepository() throws Exception {
+        File repository = folder.newFolder("repository");
+        write(new File(repository, "org/example/parent/1.0/parent-1.0.pom"), "<project>\n" +
+                "  <modelVersion>4.0.0</modelVersion>\n" +
+                "  <groupId>org.example</groupId>\n" +
+                "  <artifactId>parent</artifactId>\n" +
+                "  <version>1.0</version>\n" +
+                "  <packaging>pom</packaging>\n" +
+                "  <dependencyManagement><dependencies><dependency>\n" +
+                "    <groupId>org.example</groupId><artifactId>lib</artifactId><version>2.0</version>\n" +
+                "  </dependency></dependencies></dependencyManagement>\n" +
+                "</project>\n");
+        File settings = new File(folder.getRoot(), "ivysettings.xml");
+        String pattern = repository.getAbsolutePath() + "/[organisation]/[module]/[revision]/[module]-[revision]";
+        write(settings, "<ivysettings>\n" +
+                "  <settings defaultResolver=\"maven\"/>\n" +
+                "  <caches defaultCacheDir=\"" + new File(folder.getRoot(), "cache").getAbsolutePath() + "\"/>\n" +
+                "  <resolvers>\n" +
+                "    <filesystem name=\"maven\" m2compatible=\"true\">\n" +
+                "      <ivy pattern=\"" + pattern + ".pom\"/>\n" +
+                "      <artifact pattern=\"" + pattern + ".[ext]\"/>\n" +
+                "    </filesystem>\n" +
+                "  </resolvers>\n" +
+                "</ivysettings>\n");
+        ivy = Ivy.newInstance();
+        ivy.configure(settings);
+        pom = new File(folder.getRoot(), "pom.xml");
+        writePom("lib");
+    }
+
+    @Test
+    public void parsesPomOnce() throws Exception {
+        ModuleDescriptor md = parse();
+
+        assertSame(md, parse());
+        assertEquals(1, descriptors.getParses());
+        assertEquals(1, descriptors.getHits());
+        assertEquals("2.0", md.getDependencies()[0].getDependencyRevisionId().getRevision());
+    }
+
+    @Test
+    public void parsesChangedPomAgain() throws Exception {
+        ModuleDescriptor md = parse();
+        writePom("other");
+        pom.setLastModified(pom.lastModified() + 2000);
+
+        ModuleDescriptor changed = parse();
+
+        assertNotSame(md, changed);
+        assertEquals("other", changed.getDependencies()[0].getDependencyRevisionId().getName());
+        assertEquals(2, descriptors.getParses());
+    }
+
+    @Test
+    public void parsesPomAgainWhenParentChanged() throws Exception {
+        ModuleDescriptor md = parse();
+        IvySettings settings = ivy.getSettings();
+        ModuleRevisionId parent = ModuleRevisionId.newInstance("org.example", "parent", "1.0");
+        File cachedParent = ((DefaultRepositoryCacheManager) settings.getResolver(parent).getRepositoryCacheManager())
+                .getIvyFileInCache(parent);
+        assertTrue("parent is in the Ivy cache", cachedParent.isFile());
+        assertSame(md, parse());
+
+        FileWriter writer = new FileWriter(cachedParent, true);
+        writer.write("<!-- changed -->\n");
+        writer.close();
+
+        assertNotSame(md, parse());
+        assertEquals(2, descriptors.getParses());
+    }
+
+    @Test
+    public void settingsAreNotShared() throws Exception {
+        ModuleDescriptor md = parse();
+
+        assertNotSame(md, descriptors.parsePom(ivy.getSettings(), "other-settings.xml", settingsInputs, pom));
+    }
+
+    private ModuleDescriptor parse() throws Exception {
+        ivy.pushContext();
+        try {
+            return descriptors.parsePom(ivy.getSettings(), SETTINGS_KEY, settingsInputs, pom);
+        } finally {
+            ivy.popContext();
+        }
+    }
+
+    private void writePom(String dependency) throws IOException {
+        write(pom, "<project>\n" +
+                "  <modelVersion>4.0.0</modelVersion>\n" +
+                "  <parent><groupId>org.example</groupId><artifactId>parent</artifactId><version>1.0</version></parent>\n" +
+                "  <artifactId>child</artifactId>\n" +
+                "  <dependencies><dependency>\n" +
+                "    <groupId>org.example</groupId><artifactId>" + dependency + "</artifactId>"
+                + ("lib".equals(dependency) ? "" : "<version>1.0</version>") + "\n" +
+                "  </dependency></dependencies>\n" +
+                "</project>\n");
+    }
+
+    private static void write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.ZipFile;
+
+import org.apache.ivy.Ivy;
+import org.apache.ivy.core.module.descriptor.Artifact;
+import org.apache.ivy.core.report.ArtifactDownloadReport;
+import org.apache.ivy.core.report.DownloadReport;
+import org.apache.ivy.core.report.DownloadStatus;
+import org.apache.ivy.core.report.ResolveReport;
+import org.apache.ivy.core.resolve.DownloadOptions;
+import org.apache.ivy.core.resolve.IvyNode;
+import org.apache.ivy.plugins.resolver.DependencyResolver;
+import org.apache.ivy.util.Message;
+import org.apache.ivy.util.filter.Filter;
+
+/**
+ * Downloads the artifacts of a resolve, after Ivy resolved the metadata (a resolve with <tt>download=false</tt>).
+ *
+ * <p>Ivy downloads the artifacts of one module after the other. Here the modules are downloaded concurrently,
+ * by <tt>ivy.classpath.download.threads</tt> threads (default 4). Ivy verifies checksums while downloading, if
+ * the repository has them. On top of that, downloaded jars and zips are opened to check they are complete.
+ * A failed or incomplete download is tried again, up to <tt>ivy.classpath.download.retries</tt> times (default 2).
+ *
+ * <p>The outcome is added to the resolve report the way Ivy does it, so the report looks like that of a
+ * regular resolve.
+ */
+class IvyClasspathDownloads {
+
+    static final String THREADS_PROPERTY = "ivy.classpath.download.threads";
+    static final String RETRIES_PROPERTY = "ivy.classpath.download.retries";
+    static final int DEFAULT_THREADS = 4;
+    static final int DEFAULT_RETRIES = 2;
+
+    private final ExecutorService downloaders;
+    private final int retries;
+
+    IvyClasspathDownloads(ExecutorService downloaders, int retries) {
+        this.downloaders = downloaders;
+        this.retries = retries;
+    }
+
+    /**
+     * Download the artifacts of the modules in the report, and add them to the report.
+     */
+    @SuppressWarnings("unchecked")
+    void download(final Ivy ivy, ResolveReport report, final Filter artifactFilter) throws IvyClasspathException {
+        long start = System.currentTimeMillis();
+        List<IvyNode> nodes = new ArrayList<IvyNode>();
+        List<Future<DownloadReport>> downloads = new ArrayList<Future<DownloadReport>>();
+        for (final IvyNode node: (List<IvyNode>) report.getDependencies()) {
+            if (node.isCompletelyEvicted() || node.hasProblem() || node.getModuleRevision() == null) {
+                continue;
+            }
+            nodes.add(node);
+            downloads.add(downloaders.submit(new Callable<DownloadReport>() {
+                @Override
+                public DownloadReport call() {
+                    // Ivy keeps its settings and logger per thread
+                    ivy.pushContext();
+                    try {
+                        return download(node, artifactFilter);
+                    } finally {
+                        ivy.popContext();
+                    }
+                }
+            }));
+        }
+
+        long size = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            IvyNode node = nodes.get(i);
+            DownloadReport downloadReport = get(downloads.get(i), node);
+            DependencyResolver resolver = node.getModuleRevision().getArtifactResolver();
+            for (ArtifactDownloadReport adr: downloadReport.getArtifactsReports()) {
+                if (adr.getDownloadStatus() == DownloadStatus.FAILED) {
+                    Message.warn("\t[NOT FOUND  ] " + adr.getArtifact());
+                    resolver.reportFailure(adr.getArtifact());
+                } else if (adr.getDownloadStatus() == DownloadStatus.SUCCESSFUL) {
+                    size += adr.getSize();
+                }
+            }
+            for (String conf: node.getRootModuleConfigurations()) {
+                if (node.isEvicted(conf) || node.isBlacklisted(conf)) {
+                    report.getConfigurationReport(conf).addDependency(node);
+                } else {
+                    report.getConfigurationReport(conf).addDependency(node, downloadReport);
+                }
+            }
+        }
+        report.setDownloadTime(System.currentTimeMillis() - start);
+        report.setDownloadSize(size);
+    }
+
+    private static DownloadReport get(Future<DownloadReport> download, IvyNode node) throws IvyClasspathException {
+        try {
+            return download.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IvyClasspathException("Interrupted while downloading artifacts of " + node.getId(), e);
+        } catch (ExecutionException e) {
+            throw new IvyClasspathException("Unable to download artifacts of " + node.getId(), e.getCause());
+        }
+    }
+
+    private DownloadReport download(IvyNode node, Filter artifactFilter) {
+        DependencyResolver resolver = node.getModuleRevision().getArtifactResolver();
+        Artifact[] artifacts = node.getSelectedArtifacts(artifactFilter);
+        DownloadReport downloadReport = resolver.download(artifacts, new DownloadOptions());
+        for (int attempt = 0; attempt < retries && !complete(downloadReport); attempt++) {
+            Message.verbose("\tretrying download of " + node.getId());
+            downloadReport = resolver.download(artifacts, new DownloadOptions());
+        }
+        return downloadReport;
+    }
+
+    /**
+     * @return whether all artifacts were downloaded and the archives among them can be opened.
+     * Incomplete archives are removed, so they are downloaded again.
+     */
+    private static boolean complete(DownloadReport downloadReport) {
+        boolean complete = true;
+        for (ArtifactDownloadReport adr: downloadReport.getArtifactsReports()) {
+            if (adr.getDownloadStatus() == DownloadStatus.FAILED) {
+                complete = false;
+            } else if (adr.getDownloadStatus() == DownloadStatus.SUCCESSFUL && !verify(adr.getLocalFile())) {
+                Message.warn("\tincomplete download of " + adr.getArtifact() + ", removing " + adr.getLocalFile());
+                if (!adr.getLocalFile().delete()) {
+                    Message.warn("\tunable to remove " + adr.getLocalFile());
+                }
+                complete = false;
+            }
+        }
+        return complete;
+    }
+
+    static boolean verify(File file) {
+        if (file == null || !file.isFile()) {
+            return false;
+        }
+        String name = file.getName();
+        if (!name.endsWith(".jar") && !name.endsWith(".zip")) {
+            return true;
+        }
+        try {
+            new ZipFile(file).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
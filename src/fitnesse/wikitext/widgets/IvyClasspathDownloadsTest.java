@@ -0,0 +1,195 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class IvyClasspathDownloadsTest {
+
+    private static final int LATENCY_MILLIS = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private IvyClasspathTestRepository repository;
+    private Repository server;
+
+    @Before
+    public void startRepository() throws IOException {
+        repository = new IvyClasspathTestRepository(folder.getRoot(), 2, 2, 3).create();
+        server = new Repository(repository.getRepositoryDir());
+    }
+
+    @After
+    public void stopRepository() {
+        server.stop();
+    }
+
+    @Test
+    public void downloadsArtifactsConcurrently() throws Exception {
+        List<File> classpath = resolve();
+
+        assertEquals(repository.getArtifactCount(), classpath.size());
+        for (File f: classpath) {
+            assertTrue(f + " should be downloaded", IvyClasspathDownloads.verify(f));
+        }
+        assertTrue("max concurrent downloads: " + server.maxConcurrentDownloads.get(),
+                server.maxConcurrentDownloads.get() > 1);
+    }
+
+    @Test
+    public void downloadsIncompleteArtifactsAgain() throws Exception {
+        server.truncateOnce("lib1-0.jar");
+
+        List<File> classpath = resolve();
+
+        assertEquals(repository.getArtifactCount(), classpath.size());
+        for (File f: classpath) {
+            assertTrue(f + " should be complete", IvyClasspathDownloads.verify(f));
+        }
+        assertEquals(2, server.getDownloads("lib1-0.jar"));
+    }
+
+    @Test
+    public void verifiesArchives() throws Exception {
+        File jar = folder.newFile("complete.jar");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        out.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+        out.write("Manifest-Version: 1.0\n".getBytes("UTF-8"));
+        out.close();
+        File truncated = folder.newFile("truncated.jar");
+        copy(new FileInputStream(jar), new FileOutputStream(truncated), 10);
+
+        assertTrue(IvyClasspathDownloads.verify(jar));
+        assertFalse(IvyClasspathDownloads.verify(truncated));
+        assertTrue(IvyClasspathDownloads.verify(folder.newFile("notes.txt")));
+        assertFalse(IvyClasspathDownloads.verify(new File(folder.getRoot(), "missing.jar")));
+    }
+
+    private List<File> resolve() throws Exception {
+        File settings = repository.createHttpSettings(server.getUrl());
+        IvyClasspathSymbolType symbolType = new IvyClasspathSymbolType(IvyClasspathCache.fromSystemProperties(), new IvyClasspathStore(null));
+        return symbolType.getClasspathElements(repository.getIvyFile().getPath(), settings.getPath(), "default", false, null);
+    }
+
+    private static void copy(InputStream in, OutputStream out, long limit) throws IOException {
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while (limit > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, limit))) > 0) {
+                out.write(buffer, 0, read);
+                limit -= read;
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    /**
+     * Serves a directory over HTTP, with some latency for each jar, like a remote repository.
+     */
+    private static class Repository implements HttpHandler {
+        private final File root;
+        private final HttpServer server;
+        private final AtomicInteger concurrentDownloads = new AtomicInteger();
+        final AtomicInteger maxConcurrentDownloads = new AtomicInteger();
+        private final Set<String> truncate = new HashSet<String>();
+        private final Map<String, Integer> downloads = new HashMap<String, Integer>();
+
+        Repository(File root) throws IOException {
+            this.root = root;
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/", this);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + server.getAddress().getPort();
+        }
+
+        synchronized void truncateOnce(String name) {
+            truncate.add(name);
+        }
+
+        synchronized int getDownloads(String name) {
+            Integer count = downloads.get(name);
+            return count == null ? 0 : count;
+        }
+
+        private synchronized boolean download(File file) {
+            downloads.put(file.getName(), getDownloads(file.getName()) + 1);
+            return truncate.remove(file.getName());
+        }
+
+        void stop() {
+            server.stop(0);
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                File file = new File(root, exchange.getRequestURI().getPath());
+                if (!file.isFile()) {
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+                boolean head = "HEAD".equals(exchange.getRequestMethod());
+                if (head || !file.getName().endsWith(".jar")) {
+                    exchange.sendResponseHeaders(200, head ? -1 : file.length());
+                    if (!head) {
+                        copy(new FileInputStream(file), exchange.getResponseBody(), file.length());
+                    }
+                    return;
+                }
+                int concurrent = concurrentDownloads.incrementAndGet();
+                try {
+                    updateMax(concurrent);
+                    Thread.sleep(LATENCY_MILLIS);
+                    long length = download(file) ? file.length() / 2 : file.length();
+                    exchange.sendResponseHeaders(200, length);
+                    copy(new FileInputStream(file), exchange.getResponseBody(), length);
+                } finally {
+                    concurrentDownloads.decrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void updateMax(int concurrent) {
+            int max;
+            while ((max = maxConcurrentDownloads.get()) < concurrent
+                    && !maxConcurrentDownloads.compareAndSet(max, concurrent)) {
+                // try again
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.ivy.Ivy;
+import org.apache.ivy.core.settings.IvySettings;
+
+/**
+ * Pool of configured Ivy engines, keyed by settings file.
+ *
+ * <p>Setting up Ivy means parsing the settings file and building the resolver chain. By reusing engines,
+ * this is done once per settings file, and Ivy's in-memory caches (e.g. parsed module descriptors)
+ * stay warm between resolves. An engine is used by one thread at a time: it is checked out for a
+ * resolve and checked in again afterwards. Engines are discarded once their settings file changes.
+ */
+class IvyClasspathEngines {
+
+    private static final String DEFAULT_SETTINGS = "**";
+    private static final int MAX_IDLE_ENGINES = 4;
+
+    private final Map<String, LinkedList<Engine>> idleEngines = new HashMap<String, LinkedList<Engine>>();
+
+    /**
+     * Get an engine for a settings file, or the Ivy default settings if <tt>settingsPath</tt> is null.
+     * The engine should be handed back with {@link #checkin(Engine)} when done.
+     */
+    Engine checkout(String settingsPath) throws IvyClasspathException {
+        String key = settingsPath != null ? settingsPath : DEFAULT_SETTINGS;
+        synchronized (idleEngines) {
+            LinkedList<Engine> engines = idleEngines.get(key);
+            while (engines != null && !engines.isEmpty()) {
+                Engine engine = engines.removeFirst();
+                if (!engine.modified()) {
+                    return engine;
+                }
+            }
+        }
+        return new Engine(key, settingsPath);
+    }
+
+    void checkin(Engine engine) {
+        if (engine.modified()) {
+            return;
+        }
+        synchronized (idleEngines) {
+            LinkedList<Engine> engines = idleEngines.get(engine.key);
+            if (engines == null) {
+                engines = new LinkedList<Engine>();
+                idleEngines.put(engine.key, engines);
+            }
+            if (engines.size() < MAX_IDLE_ENGINES) {
+                engines.addFirst(engine);
+            }
+        }
+    }
+
+    /**
+     * A configured Ivy instance.
+     */
+    static class Engine {
+        private final String key;
+        final Ivy ivy;
+        final IvyClasspathMessageLogger logger;
+        final File settingsFile;
+        // Fingerprints of the settings file and the files it includes
+        final List<IvyClasspathFingerprint> settingsInputs;
+
+        private Engine(String key, String settingsPath) throws IvyClasspathException {
+            this.key = key;
+            this.ivy = Ivy.newInstance();
+            this.logger = initMessage(ivy);
+            this.settingsFile = initSettings(ivy, settingsPath);
+            if (settingsFile != null) {
+                try {
+                    this.settingsInputs = Collections.unmodifiableList(
+                            IvyClasspathFingerprint.ofAll(IvyClasspathInputFiles.forSettings(settingsFile, ivy.getSettings())));
+                } catch (IOException e) {
+                    throw new IvyClasspathException("Unable to read settings file " + settingsFile.getAbsolutePath(), e);
+                }
+            } else {
+                this.settingsInputs = Collections.emptyList();
+            }
+        }
+
+        boolean modified() {
+            for (IvyClasspathFingerprint input: settingsInputs) {
+                if (!input.matches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static IvyClasspathMessageLogger initMessage(Ivy ivy) {
+        IvyClasspathMessageLogger logger = new IvyClasspathMessageLogger();
+        ivy.getLoggerEngine().pushLogger(logger);
+        return logger;
+    }
+
+    private static File initSettings(Ivy ivy, String settingsPath) throws IvyClasspathException {
+        IvySettings settings = ivy.getSettings();
+        settings.addAllVariables(System.getProperties());
+        File settingsFile = null;
+        if (settingsPath == null) {
+        	try {
+        		ivy.configureDefault();
+			} catch (Exception e) {
+				throw new IvyClasspathException("Unable to set default configuration", e);
+			}
+        } else {
+            settingsFile = new File(settingsPath);
+            if (!settingsFile.exists()) {
+                throw new IvyClasspathException("Ivy configuration file not found: " + settingsFile);
+            } else if (settingsFile.isDirectory()) {
+            	throw new IvyClasspathException("Ivy configuration file is not a file: " + settingsFile);
+            }
+            try {
+				ivy.configure(settingsFile);
+			} catch (Exception e) {
+				throw new IvyClasspathException("Unable to configure ivy with file " + settingsFile.getAbsolutePath(), e);
+			}
+        }
+        return settingsFile;
+    }
+}
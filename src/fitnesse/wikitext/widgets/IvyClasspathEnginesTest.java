@@ -0,0 +1,79 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class IvyClasspathEnginesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final IvyClasspathEngines engines = new IvyClasspathEngines();
+
+    @Test
+    public void reusesEngineForTheSameSettings() throws Exception {
+        IvyClasspathEngines.Engine engine = engines.checkout(null);
+        engines.checkin(engine);
+
+        assertSame(engine, engines.checkout(null));
+    }
+
+    @Test
+    public void engineIsUsedByOneThreadAtATime() throws Exception {
+        IvyClasspathEngines.Engine engine = engines.checkout(null);
+
+        assertNotSame(engine, engines.checkout(null));
+    }
+
+    @Test
+    public void differentSettingsGetDifferentEngines() throws Exception {
+        File settingsFile = write("ivysettings.xml", "<ivysettings/>");
+        IvyClasspathEngines.Engine engine = engines.checkout(null);
+        engines.checkin(engine);
+
+        IvyClasspathEngines.Engine settingsEngine = engines.checkout(settingsFile.getPath());
+
+        assertNotSame(engine, settingsEngine);
+        assertEquals(settingsFile, settingsEngine.settingsFile);
+        assertEquals(1, settingsEngine.settingsInputs.size());
+    }
+
+    @Test
+    public void engineIsDiscardedWhenSettingsChange() throws Exception {
+        File settingsFile = write("ivysettings.xml", "<ivysettings/>");
+        IvyClasspathEngines.Engine engine = engines.checkout(settingsFile.getPath());
+        engines.checkin(engine);
+
+        write("ivysettings.xml", "<ivysettings><!-- changed --></ivysettings>");
+
+        assertNotSame(engine, engines.checkout(settingsFile.getPath()));
+    }
+
+    @Test
+    public void missingSettingsFileIsAnError() {
+        try {
+            engines.checkout("ivysettings-not-there.xml");
+            fail("Expected an exception");
+        } catch (IvyClasspathException e) {
+            assertEquals("Ivy configuration file not found: ivysettings-not-there.xml", e.getMessage());
+        }
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,150 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Fingerprint of a file: size, modification time and a hash of the content.
+ */
+class IvyClasspathFingerprint {
+
+    private final File file;
+    private final long length;
+    private volatile long lastModified;
+    private final String digest;
+
+    IvyClasspathFingerprint(File file, long length, long lastModified, String digest) {
+        this.file = file;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.digest = digest;
+    }
+
+    static IvyClasspathFingerprint of(File file) throws IOException {
+        return new IvyClasspathFingerprint(file, file.length(), file.lastModified(), digest(file));
+    }
+
+    static List<IvyClasspathFingerprint> ofAll(Collection<File> files) throws IOException {
+        List<IvyClasspathFingerprint> fingerprints = new ArrayList<IvyClasspathFingerprint>(files.size());
+        for (File file: files) {
+            fingerprints.add(of(file));
+        }
+        return fingerprints;
+    }
+
+    /**
+     * @return the fingerprint as tab separated fields: length, last modified, digest and path.
+     */
+    String format() {
+        return length + "\t" + lastModified + "\t" + digest + "\t" + file.getAbsolutePath();
+    }
+
+    /**
+     * @return the fingerprint written by {@link #format()}, or null if the text is not a fingerprint.
+     */
+    static IvyClasspathFingerprint parse(String text) {
+        String[] fields = text.split("\t", 4);
+        if (fields.length < 4) {
+            return null;
+        }
+        try {
+            return new IvyClasspathFingerprint(new File(fields[3]), Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    long getLastModified() {
+        return lastModified;
+    }
+
+    String getDigest() {
+        return digest;
+    }
+
+    /**
+     * @return true if the file still has the same content as when the fingerprint was taken.
+     * The content is only hashed if size and timestamp do not give a definite answer.
+     * If only the timestamp changed (e.g. by a checkout), the new timestamp is remembered.
+     */
+    boolean matches() {
+        long currentLastModified = file.lastModified();
+        if (file.length() != length) {
+            return false;
+        }
+        if (currentLastModified == lastModified && currentLastModified != 0L) {
+            return true;
+        }
+        try {
+            if (digest.equals(digest(file))) {
+                lastModified = currentLastModified;
+                return true;
+            }
+        } catch (IOException e) {
+            // File is gone or can not be read
+        }
+        return false;
+    }
+
+    static String digest(File file) throws IOException {
+        MessageDigest messageDigest = sha1();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return hex(messageDigest.digest());
+    }
+
+    /**
+     * @return a hash of the paths, sizes and modification times of the files, to name files derived from them.
+     */
+    static String digestOfAll(Collection<File> files) {
+        MessageDigest digest = sha1();
+        for (File file: files) {
+            try {
+                digest.update((file.getAbsolutePath() + "\t" + file.length() + "\t" + file.lastModified() + "\n").getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException("UTF-8 not supported by this JVM", e);
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not supported by this JVM", e);
+        }
+    }
+
+    static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b: digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,429 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.ivy.core.module.descriptor.Configuration;
+import org.apache.ivy.core.module.descriptor.DefaultModuleDescriptor;
+import org.apache.ivy.core.module.descriptor.DependencyDescriptor;
+import org.apache.ivy.core.module.descriptor.ExcludeRule;
+import org.apache.ivy.core.module.descriptor.ModuleDescriptor;
+import org.apache.ivy.core.module.id.ModuleId;
+import org.apache.ivy.core.report.ArtifactDownloadReport;
+import org.apache.ivy.core.report.ResolveReport;
+import org.apache.ivy.core.resolve.IvyNode;
+import org.apache.ivy.core.resolve.IvyNodeCallers;
+
+/**
+ * The resolved dependency graph of a module, per direct dependency: the module revisions and artifacts it
+ * brings in. When the module descriptor changes, only the dependencies that changed are resolved again,
+ * and the part of the classpath that comes from the other dependencies is reused.
+ *
+ * <p>Reuse is only safe if the dependencies that changed do not share modules with the ones that did not,
+ * because Ivy's conflict management may have picked a revision based on the whole graph.
+ * If they do share modules, or if anything but the dependencies changed (configurations, excludes, settings),
+ * {@link #changedDependencies(ModuleDescriptor, String[])} returns null and the module is resolved in full.
+ *
+ * <p>The classpath is ordered by the graph alone, so a classpath put together from subtrees of different resolves
+ * is the same as the classpath of a full resolve: modules come before the modules they depend on, and are otherwise
+ * in the order they are reached from the direct dependencies, in declaration order.
+ */
+class IvyClasspathGraph {
+
+    private final List<IvyClasspathFingerprint> settingsInputs;
+    // Everything of the descriptor that is not a dependency
+    private final String signature;
+    // The configurations that were resolved
+    private final List<String> confs;
+    // Per direct dependency, in declaration order
+    private final Map<ModuleId, Subtree> subtrees;
+    // The subtree that holds the artifacts of each module
+    private final Map<ModuleId, Subtree> holders = new HashMap<ModuleId, Subtree>();
+    // The modules in classpath order
+    private final List<ModuleId> order;
+
+    private IvyClasspathGraph(List<IvyClasspathFingerprint> settingsInputs, String signature, List<String> confs,
+                              Map<ModuleId, Subtree> subtrees) {
+        this.settingsInputs = settingsInputs;
+        this.signature = signature;
+        this.confs = confs;
+        this.subtrees = subtrees;
+        for (Subtree subtree: subtrees.values()) {
+            for (ModuleId module: subtree.modules.keySet()) {
+                if (!holders.containsKey(module)) {
+                    holders.put(module, subtree);
+                }
+            }
+        }
+        this.order = order(subtrees.keySet(), holders);
+    }
+
+    /**
+     * @return the graph of a resolve, or null if the classpath can not be split up by direct dependency.
+     */
+    @SuppressWarnings("unchecked")
+    static IvyClasspathGraph of(ModuleDescriptor md, ResolveReport report, List<IvyClasspathFingerprint> settingsInputs) {
+        String signature = signature(md);
+        if (signature == null) {
+            return null;
+        }
+        ModuleId root = md.getModuleRevisionId().getModuleId();
+
+        Map<ModuleId, IvyNode> nodes = new HashMap<ModuleId, IvyNode>();
+        for (IvyNode node: (List<IvyNode>) report.getDependencies()) {
+            if (!node.isCompletelyEvicted() && !node.hasProblem()) {
+                if (md.getConflictManager(node.getModuleId()) != null || nodes.put(node.getModuleId(), node) != null) {
+                    return null;
+                }
+            }
+        }
+
+        // Turn the callers around, to walk the graph from the direct dependencies down
+        Set<ModuleId> direct = new LinkedHashSet<ModuleId>();
+        Map<ModuleId, List<ModuleId>> dependencies = new HashMap<ModuleId, List<ModuleId>>();
+        for (IvyNode node: nodes.values()) {
+            for (IvyNodeCallers.Caller caller: node.getAllCallers()) {
+                ModuleId callerModule = caller.getModuleRevisionId().getModuleId();
+                if (callerModule.equals(root)) {
+                    direct.add(node.getModuleId());
+                } else if (!nodes.containsKey(callerModule)) {
+                    return null;
+                } else {
+                    List<ModuleId> callees = dependencies.get(callerModule);
+                    if (callees == null) {
+                        callees = new ArrayList<ModuleId>();
+                        dependencies.put(callerModule, callees);
+                    }
+                    callees.add(node.getModuleId());
+                }
+            }
+        }
+        for (Map.Entry<ModuleId, List<ModuleId>> callees: dependencies.entrySet()) {
+            callees.setValue(inDeclarationOrder(nodes.get(callees.getKey()).getDescriptor(), callees.getValue()));
+        }
+
+        // The direct dependencies each module is brought in by
+        Map<ModuleId, Set<ModuleId>> owners = new HashMap<ModuleId, Set<ModuleId>>();
+        for (ModuleId owner: direct) {
+            LinkedList<ModuleId> todo = new LinkedList<ModuleId>(Collections.singleton(owner));
+            while (!todo.isEmpty()) {
+                ModuleId module = todo.removeFirst();
+                Set<ModuleId> moduleOwners = owners.get(module);
+                if (moduleOwners == null) {
+                    moduleOwners = new HashSet<ModuleId>();
+                    owners.put(module, moduleOwners);
+                }
+                if (moduleOwners.add(owner) && dependencies.containsKey(module)) {
+                    todo.addAll(dependencies.get(module));
+                }
+            }
+        }
+
+        Map<ModuleId, Subtree> subtrees = new LinkedHashMap<ModuleId, Subtree>();
+        for (DependencyDescriptor dd: md.getDependencies()) {
+            if (subtrees.put(dd.getDependencyId(), new Subtree(fingerprint(dd))) != null) {
+                return null;
+            }
+        }
+        for (IvyNode node: nodes.values()) {
+            for (ModuleId owner: owners.get(node.getModuleId())) {
+                Subtree subtree = subtrees.get(owner);
+                if (subtree == null) {
+                    return null;
+                }
+                subtree.modules.put(node.getModuleId(), node.getResolvedId().getRevision());
+                List<ModuleId> callees = dependencies.get(node.getModuleId());
+                subtree.dependencies.put(node.getModuleId(),
+                        callees != null ? callees : Collections.<ModuleId>emptyList());
+            }
+        }
+        for (String conf: report.getConfigurations()) {
+            for (ArtifactDownloadReport adr: report.getConfigurationReport(conf).getAllArtifactsReports()) {
+                ModuleId module = adr.getArtifact().getModuleRevisionId().getModuleId();
+                Set<ModuleId> artifactOwners = owners.get(module);
+                if (artifactOwners == null || artifactOwners.isEmpty()) {
+                    return null;
+                }
+                for (ModuleId owner: artifactOwners) {
+                    subtrees.get(owner).add(module, conf, adr.getLocalFile());
+                }
+            }
+        }
+        for (Subtree subtree: subtrees.values()) {
+            subtree.seal();
+        }
+        return new IvyClasspathGraph(settingsInputs, signature, Arrays.asList(report.getConfigurations()), subtrees);
+    }
+
+    /**
+     * @param confs the configurations to resolve
+     * @return the dependencies of the changed descriptor that have to be resolved (none if only their order or the
+     * formatting changed), or null if the descriptor has to be resolved in full.
+     */
+    List<DependencyDescriptor> changedDependencies(ModuleDescriptor md, String[] confs) {
+        if (!this.confs.equals(Arrays.asList(confs))) {
+            return null;
+        }
+        for (IvyClasspathFingerprint input: settingsInputs) {
+            if (!input.matches()) {
+                return null;
+            }
+        }
+        if (!signature.equals(signature(md))) {
+            return null;
+        }
+
+        List<DependencyDescriptor> changed = new ArrayList<DependencyDescriptor>();
+        Set<ModuleId> declared = new HashSet<ModuleId>();
+        Set<ModuleId> kept = new HashSet<ModuleId>();
+        for (DependencyDescriptor dd: md.getDependencies()) {
+            if (!declared.add(dd.getDependencyId()) || md.getConflictManager(dd.getDependencyId()) != null) {
+                return null;
+            }
+            Subtree subtree = subtrees.get(dd.getDependencyId());
+            if (subtree != null && subtree.dependency.equals(fingerprint(dd))) {
+                kept.add(dd.getDependencyId());
+            } else {
+                changed.add(dd);
+            }
+        }
+
+        // The modules that come with the dependencies that are kept must not have been resolved in combination
+        // with the dependencies that changed or were removed
+        Set<ModuleId> keptModules = new HashSet<ModuleId>();
+        for (ModuleId dependency: kept) {
+            keptModules.addAll(subtrees.get(dependency).modules.keySet());
+        }
+        for (Map.Entry<ModuleId, Subtree> subtree: subtrees.entrySet()) {
+            if (!kept.contains(subtree.getKey())) {
+                for (ModuleId module: subtree.getValue().modules.keySet()) {
+                    if (keptModules.contains(module) || md.getConflictManager(module) != null) {
+                        return null;
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return a descriptor like <tt>md</tt>, with only the given dependencies.
+     */
+    static ModuleDescriptor partialDescriptor(ModuleDescriptor md, List<DependencyDescriptor> dependencies) {
+        DefaultModuleDescriptor partial = new DefaultModuleDescriptor(md.getModuleRevisionId(), md.getStatus(),
+                md.getPublicationDate());
+        for (Configuration conf: md.getConfigurations()) {
+            partial.addConfiguration(conf);
+        }
+        for (ExcludeRule rule: md.getAllExcludeRules()) {
+            partial.addExcludeRule(rule);
+        }
+        for (DependencyDescriptor dd: dependencies) {
+            partial.addDependency(dd);
+        }
+        return partial;
+    }
+
+    /**
+     * Combine the subtrees of the dependencies of <tt>md</tt> that did not change with the resolved changes.
+     * @param changes the graph of the {@link #partialDescriptor(ModuleDescriptor, List) partial descriptor},
+     *                or null if no dependencies changed
+     * @return the graph of <tt>md</tt>, or null if the changes need different revisions of the modules that are kept.
+     */
+    IvyClasspathGraph update(ModuleDescriptor md, IvyClasspathGraph changes) {
+        Map<ModuleId, Subtree> updated = new LinkedHashMap<ModuleId, Subtree>();
+        Map<ModuleId, String> revisions = new HashMap<ModuleId, String>();
+        for (DependencyDescriptor dd: md.getDependencies()) {
+            Subtree subtree = changes != null && changes.subtrees.containsKey(dd.getDependencyId())
+                    ? changes.subtrees.get(dd.getDependencyId())
+                    : subtrees.get(dd.getDependencyId());
+            for (Map.Entry<ModuleId, String> module: subtree.modules.entrySet()) {
+                String revision = revisions.put(module.getKey(), module.getValue());
+                if (revision != null && !revision.equals(module.getValue())) {
+                    return null;
+                }
+            }
+            updated.put(dd.getDependencyId(), subtree);
+        }
+        return new IvyClasspathGraph(settingsInputs, signature, confs, updated);
+    }
+
+    /**
+     * @return the artifacts of all dependencies in a configuration, in classpath order (see above).
+     */
+    List<File> getClasspath(String conf) {
+        Set<File> classpath = new LinkedHashSet<File>();
+        for (ModuleId module: order) {
+            Map<String, List<File>> artifacts = holders.get(module).artifacts.get(module);
+            if (artifacts != null && artifacts.containsKey(conf)) {
+                classpath.addAll(artifacts.get(conf));
+            }
+        }
+        return new ArrayList<File>(classpath);
+    }
+
+    /**
+     * @return the modules, callers before the modules they depend on, and otherwise in the order they are first
+     * reached going depth first from the direct dependencies. Modules in a cycle are taken in the latter order.
+     */
+    private static List<ModuleId> order(Collection<ModuleId> direct, Map<ModuleId, Subtree> holders) {
+        final Map<ModuleId, Integer> reached = new HashMap<ModuleId, Integer>();
+        LinkedList<ModuleId> todo = new LinkedList<ModuleId>(direct);
+        while (!todo.isEmpty()) {
+            ModuleId module = todo.removeFirst();
+            if (!reached.containsKey(module) && holders.containsKey(module)) {
+                reached.put(module, reached.size());
+                todo.addAll(0, callees(module, holders));
+            }
+        }
+        Comparator<ModuleId> byReached = new Comparator<ModuleId>() {
+            @Override
+            public int compare(ModuleId a, ModuleId b) {
+                return reached.get(a) - reached.get(b);
+            }
+        };
+
+        Map<ModuleId, Integer> callers = new HashMap<ModuleId, Integer>();
+        for (ModuleId module: reached.keySet()) {
+            for (ModuleId callee: callees(module, holders)) {
+                Integer count = callers.get(callee);
+                callers.put(callee, count == null ? 1 : count + 1);
+            }
+        }
+        PriorityQueue<ModuleId> ready = new PriorityQueue<ModuleId>(Math.max(1, reached.size()), byReached);
+        for (ModuleId module: reached.keySet()) {
+            if (!callers.containsKey(module)) {
+                ready.add(module);
+            }
+        }
+        TreeSet<ModuleId> remaining = new TreeSet<ModuleId>(byReached);
+        remaining.addAll(reached.keySet());
+        List<ModuleId> order = new ArrayList<ModuleId>(reached.size());
+        while (!remaining.isEmpty()) {
+            ModuleId module = ready.isEmpty() ? remaining.first() : ready.poll();
+            if (remaining.remove(module)) {
+                order.add(module);
+                for (ModuleId callee: callees(module, holders)) {
+                    int count = callers.get(callee) - 1;
+                    callers.put(callee, count);
+                    if (count == 0) {
+                        ready.add(callee);
+                    }
+                }
+            }
+        }
+        return order;
+    }
+
+    private static List<ModuleId> callees(ModuleId module, Map<ModuleId, Subtree> holders) {
+        return holders.get(module).dependencies.get(module);
+    }
+
+    /**
+     * @return the modules, without duplicates, in the order <tt>caller</tt> declares them.
+     */
+    private static List<ModuleId> inDeclarationOrder(ModuleDescriptor caller, Collection<ModuleId> modules) {
+        Set<ModuleId> ordered = new LinkedHashSet<ModuleId>();
+        if (caller != null) {
+            for (DependencyDescriptor dd: caller.getDependencies()) {
+                if (modules.contains(dd.getDependencyId())) {
+                    ordered.add(dd.getDependencyId());
+                }
+            }
+        }
+        // Modules the caller does not declare itself, if any, go last, by name
+        Set<ModuleId> rest = new TreeSet<ModuleId>(new Comparator<ModuleId>() {
+            @Override
+            public int compare(ModuleId a, ModuleId b) {
+                return a.toString().compareTo(b.toString());
+            }
+        });
+        rest.addAll(modules);
+        rest.removeAll(ordered);
+        ordered.addAll(rest);
+        return new ArrayList<ModuleId>(ordered);
+    }
+
+    /**
+     * @return the parts of the descriptor that are not dependencies, or null if the descriptor uses features
+     * that make the graph impossible to split up.
+     */
+    private static String signature(ModuleDescriptor md) {
+        if (!md.getAllDependencyDescriptorMediators().getAllRules().isEmpty()) {
+            return null;
+        }
+        StringBuilder signature = new StringBuilder(md.getModuleRevisionId().toString());
+        for (Configuration conf: md.getConfigurations()) {
+            signature.append(';').append(conf.getName())
+                    .append(Arrays.toString(conf.getExtends()))
+                    .append(conf.getVisibility())
+                    .append(conf.isTransitive());
+        }
+        return signature.append(Arrays.toString(md.getAllExcludeRules())).toString();
+    }
+
+    private static String fingerprint(DependencyDescriptor dd) {
+        StringBuilder fingerprint = new StringBuilder()
+                .append(dd.getDependencyRevisionId())
+                .append(dd.getDependencyRevisionId().getQualifiedExtraAttributes())
+                .append(dd.getDynamicConstraintDependencyRevisionId())
+                .append(dd.isForce()).append(dd.isChanging()).append(dd.isTransitive());
+        for (String conf: dd.getModuleConfigurations()) {
+            fingerprint.append(';').append(conf).append("->").append(Arrays.toString(dd.getDependencyConfigurations(conf)));
+        }
+        return fingerprint
+                .append(Arrays.toString(dd.getAllExcludeRules()))
+                .append(Arrays.toString(dd.getAllIncludeRules()))
+                .append(Arrays.toString(dd.getAllDependencyArtifacts()))
+                .toString();
+    }
+
+    private static class Subtree {
+        final String dependency;
+        final Map<ModuleId, String> modules = new HashMap<ModuleId, String>();
+        // The modules each module depends on, in declaration order
+        private final Map<ModuleId, List<ModuleId>> dependencies = new HashMap<ModuleId, List<ModuleId>>();
+        // Per module and configuration
+        private final Map<ModuleId, Map<String, List<File>>> artifacts = new HashMap<ModuleId, Map<String, List<File>>>();
+
+        private Subtree(String dependency) {
+            this.dependency = dependency;
+        }
+
+        private void add(ModuleId module, String conf, File artifact) {
+            Map<String, List<File>> confs = artifacts.get(module);
+            if (confs == null) {
+                confs = new HashMap<String, List<File>>();
+                artifacts.put(module, confs);
+            }
+            List<File> files = confs.get(conf);
+            if (files == null) {
+                files = new ArrayList<File>();
+                confs.put(conf, files);
+            }
+            files.add(artifact);
+        }
+
+        private void seal() {
+            for (Map<String, List<File>> confs: artifacts.values()) {
+                for (Map.Entry<String, List<File>> conf: confs.entrySet()) {
+                    conf.setValue(IvyClasspath.of(conf.getValue()));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Indexes resolved classpaths, so test JVMs started with them need to open fewer jars.
+ *
+ * <p>For each classpath two files are written, named after a fingerprint of the classpath (the paths, sizes
+ * and modification times of its artifacts):
+ * <ul>
+ * <li><tt>&lt;fingerprint&gt;.jar</tt>, holding a jar index (<tt>META-INF/INDEX.LIST</tt>) that maps packages to
+ * the jars that contain them. It is put in front of the classpath. The class loader of the test JVM then only
+ * opens a jar once a class or resource of one of its packages is needed, instead of searching the jars in order.
+ * <li><tt>&lt;fingerprint&gt;.classlist</tt>, the classes on the classpath, to create a class data sharing archive
+ * with <tt>-Xshare:dump -XX:SharedClassListFile</tt>.
+ * </ul>
+ *
+ * <p>The jar index can only hand out one jar per resource. Jars that would break that are left out of the index
+ * and are searched as usual: jars with service registrations or other resources under <tt>META-INF</tt>, jars
+ * with a <tt>Class-Path</tt> or <tt>Multi-Release</tt> manifest, and jars that share a file with another jar.
+ *
+ * <p>Indexing is enabled with the system property <tt>ivy.classpath.index</tt>, set to <tt>true</tt> (the index
+ * is kept in <tt>fitnesse-ivy-classpath-index</tt> in the Ivy cache directory) or to a directory.
+ */
+class IvyClasspathIndex {
+
+    static final String INDEX_PROPERTY = "ivy.classpath.index";
+    private static final String INDEX_NAME = "META-INF/INDEX.LIST";
+    private static final String CLASS_SUFFIX = ".class";
+
+    private final File dir;
+
+    IvyClasspathIndex(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @return the index configured by the system property, or null if indexing is disabled.
+     */
+    static IvyClasspathIndex fromSystemProperties() {
+        String location = System.getProperty(INDEX_PROPERTY);
+        if (location == null || "".equals(location) || "false".equals(location)) {
+            return null;
+        }
+        return new IvyClasspathIndex("true".equals(location)
+                ? new File(IvyClasspathStore.ivyCacheDir(), "fitnesse-ivy-classpath-index")
+                : new File(location));
+    }
+
+    /**
+     * @return the paths of the classpath, preceded by its index jar. The index is written the first time
+     * the classpath is seen.
+     */
+    synchronized List<String> index(IvyClasspath classpath) throws IOException {
+        File indexJar = getIndexJar(classpath);
+        if (!indexJar.isFile()) {
+            write(classpath, indexJar);
+        }
+        List<String> paths = new ArrayList<String>(classpath.size() + 1);
+        paths.add(indexJar.getAbsolutePath());
+        paths.addAll(classpath.getPaths());
+        return paths;
+    }
+
+    File getIndexJar(IvyClasspath classpath) {
+        return new File(dir, fingerprint(classpath) + ".jar");
+    }
+
+    File getClassList(IvyClasspath classpath) {
+        return new File(dir, fingerprint(classpath) + ".classlist");
+    }
+
+    private static String fingerprint(IvyClasspath classpath) {
+        return IvyClasspathFingerprint.digestOfAll(classpath);
+    }
+
+    private void write(IvyClasspath classpath, File indexJar) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+        List<Contents> jars = new ArrayList<Contents>(classpath.size());
+        Map<String, Integer> owners = new HashMap<String, Integer>();
+        for (File file: classpath) {
+            Contents contents = Contents.of(file);
+            if (contents != null) {
+                jars.add(contents);
+                for (String name: contents.files) {
+                    Integer count = owners.get(name);
+                    owners.put(name, count == null ? 1 : count + 1);
+                }
+            }
+        }
+
+        // The class list first: the index jar marks the index as complete
+        File classList = getClassList(classpath);
+        File tmp = new File(dir, classList.getName() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            for (Contents contents: jars) {
+                for (String name: contents.files) {
+                    if (name.endsWith(CLASS_SUFFIX) && !name.endsWith("module-info.class")) {
+                        writer.write(name, 0, name.length() - CLASS_SUFFIX.length());
+                        writer.write('\n');
+                    }
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        rename(tmp, classList);
+
+        tmp = new File(dir, indexJar.getName() + ".tmp");
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(tmp), manifest);
+        try {
+            out.putNextEntry(new JarEntry(INDEX_NAME));
+            StringBuilder index = new StringBuilder("JarIndex-Version: 1.0\n\n");
+            for (Contents contents: jars) {
+                if (contents.indexable && unshared(contents, owners)) {
+                    // The class loader compares the canonical location of the jars on the classpath
+                    index.append(contents.file.getCanonicalFile().toURI().getRawPath()).append('\n');
+                    for (String pkg: contents.packages) {
+                        index.append(pkg).append('\n');
+                    }
+                    index.append('\n');
+                }
+            }
+            out.write(index.toString().getBytes("UTF-8"));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        rename(tmp, indexJar);
+    }
+
+    private static boolean unshared(Contents contents, Map<String, Integer> owners) {
+        for (String name: contents.files) {
+            if (owners.get(name) > 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            to.delete();
+            if (!from.renameTo(to)) {
+                from.delete();
+                throw new IOException("Unable to write " + to);
+            }
+        }
+    }
+
+    /**
+     * The files and packages of a jar.
+     */
+    private static class Contents {
+        final File file;
+        // Files outside META-INF
+        final List<String> files = new ArrayList<String>();
+        // Directories of those files, or the file itself if it is not in a directory, as the jar index has them
+        final Set<String> packages = new LinkedHashSet<String>();
+        boolean indexable;
+
+        private Contents(File file) {
+            this.file = file;
+        }
+
+        /**
+         * @return the contents of the jar, or null if the file is not a jar that can be read.
+         */
+        static Contents of(File file) {
+            if (!file.getName().endsWith(".jar") || !file.isFile()) {
+                return null;
+            }
+            Contents contents = new Contents(file);
+            try {
+                JarFile jar = new JarFile(file, false);
+                try {
+                    contents.indexable = indexable(jar.getManifest());
+                    Enumeration<JarEntry> entries = jar.entries();
+                    while (entries.hasMoreElements()) {
+                        JarEntry entry = entries.nextElement();
+                        String name = entry.getName();
+                        if (name.startsWith("META-INF/")) {
+                            contents.indexable &= entry.isDirectory() || isManifestOrSignature(name);
+                        } else if (!entry.isDirectory()) {
+                            contents.files.add(name);
+                            int slash = name.lastIndexOf('/');
+                            contents.packages.add(slash == -1 ? name : name.substring(0, slash));
+                        }
+                    }
+                } finally {
+                    jar.close();
+                }
+            } catch (IOException e) {
+                return null;
+            }
+            return contents;
+        }
+
+        private static boolean indexable(Manifest manifest) {
+            if (manifest == null) {
+                return true;
+            }
+            Attributes attributes = manifest.getMainAttributes();
+            return attributes.getValue(Attributes.Name.CLASS_PATH) == null && !"true".equalsIgnoreCase(attributes.getValue("Multi-Release"));
+        }
+
+        private static boolean isManifestOrSignature(String name) {
+            String upper = name.toUpperCase();
+            return JarFile.MANIFEST_NAME.equals(upper) || upper.indexOf('/', "META-INF/".length()) == -1
+                    && (upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC"));
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class IvyClasspathIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void putsIndexJarInFrontOfClasspath() throws Exception {
+        IvyClasspath classpath = IvyClasspath.of(Arrays.asList(
+                jar("a.jar", null, "org/a/A.class"), jar("b.jar", null, "org/b/B.class")));
+        IvyClasspathIndex index = new IvyClasspathIndex(folder.newFolder("index"));
+
+        List<String> paths = index.index(classpath);
+        File indexJar = new File(paths.get(0));
+        indexJar.setLastModified(1000L);
+
+        assertEquals(index.getIndexJar(classpath).getAbsolutePath(), paths.get(0));
+        assertEquals(classpath.getPaths(), paths.subList(1, paths.size()));
+        assertEquals(paths, index.index(classpath));
+        assertEquals("index is written once", 1000L, indexJar.lastModified());
+    }
+
+    @Test
+    public void mapsPackagesToJars() throws Exception {
+        File a = jar("a.jar", null, "org/a/A.class", "org/a/inner/I.class", "a.properties");
+        File b = jar("b.jar", null, "org/b/B.class");
+        IvyClasspath classpath = IvyClasspath.of(Arrays.asList(a, b));
+
+        String jarIndex = readIndex(new IvyClasspathIndex(folder.newFolder("index")), classpath);
+
+        assertEquals("JarIndex-Version: 1.0\n\n"
+                + uri(a) + "\norg/a\norg/a/inner\na.properties\n\n"
+                + uri(b) + "\norg/b\n\n", jarIndex);
+    }
+
+    @Test
+    public void leavesOutJarsThatCanNotBeIndexed() throws Exception {
+        File plain = jar("plain.jar", null, "org/plain/P.class");
+        File services = jar("services.jar", null, "org/s/S.class", "META-INF/services/org.s.Service");
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.CLASS_PATH, "other.jar");
+        File withClassPath = jar("classpath.jar", manifest, "org/c/C.class");
+        File shared1 = jar("shared1.jar", null, "org/one/One.class", "version.properties");
+        File shared2 = jar("shared2.jar", null, "org/two/Two.class", "version.properties");
+        IvyClasspath classpath = IvyClasspath.of(Arrays.asList(plain, services, withClassPath, shared1, shared2));
+
+        String jarIndex = readIndex(new IvyClasspathIndex(folder.newFolder("index")), classpath);
+
+        assertEquals("JarIndex-Version: 1.0\n\n" + uri(plain) + "\norg/plain\n\n", jarIndex);
+    }
+
+    @Test
+    public void writesClassList() throws Exception {
+        IvyClasspath classpath = IvyClasspath.of(Arrays.asList(
+                jar("a.jar", null, "org/a/A.class", "org/a/A$1.class", "a.properties", "module-info.class"),
+                jar("b.jar", null, "org/b/B.class")));
+        IvyClasspathIndex index = new IvyClasspathIndex(folder.newFolder("index"));
+
+        index.index(classpath);
+
+        assertEquals("org/a/A\norg/a/A$1\norg/b/B\n", read(index.getClassList(classpath)));
+    }
+
+    @Test
+    public void classesAndResourcesAreFoundThroughTheIndex() throws Exception {
+        List<File> files = Arrays.asList(
+                jar("a.jar", null, "org/a/A.class", "org/split/FromA.class"),
+                jar("b.jar", null, "org/b/B.class", "org/split/FromB.class", "version.properties"),
+                jar("c.jar", null, "org/c/C.class", "version.properties", "META-INF/services/org.Service"),
+                jar("d.jar", null, "org/d/D.class", "META-INF/services/org.Service"));
+        List<String> paths = new IvyClasspathIndex(folder.newFolder("index")).index(IvyClasspath.of(files));
+        List<URL> urls = new ArrayList<URL>();
+        for (String path: paths) {
+            urls.add(new File(path).toURI().toURL());
+        }
+        URLClassLoader loader = new URLClassLoader(urls.toArray(new URL[urls.size()]), null);
+
+        try {
+            for (String name: Arrays.asList("org/a/A.class", "org/b/B.class", "org/c/C.class", "org/d/D.class",
+                    "org/split/FromA.class", "org/split/FromB.class")) {
+                assertNotNull(name, loader.getResource(name));
+            }
+            assertNull(loader.getResource("org/a/Missing.class"));
+            assertEquals(2, Collections.list(loader.getResources("version.properties")).size());
+            assertEquals(2, Collections.list(loader.getResources("META-INF/services/org.Service")).size());
+        } finally {
+            loader.close();
+        }
+    }
+
+    private File jar(String name, Manifest manifest, String... entries) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        JarOutputStream jar = manifest == null
+                ? new JarOutputStream(new FileOutputStream(file))
+                : new JarOutputStream(new FileOutputStream(file), manifest);
+        try {
+            for (String entry: entries) {
+                jar.putNextEntry(new JarEntry(entry));
+                jar.write(entry.getBytes("UTF-8"));
+                jar.closeEntry();
+            }
+        } finally {
+            jar.close();
+        }
+        return file;
+    }
+
+    private static String readIndex(IvyClasspathIndex index, IvyClasspath classpath) throws IOException {
+        JarFile jar = new JarFile(index.index(classpath).get(0));
+        try {
+            return read(jar.getInputStream(jar.getJarEntry("META-INF/INDEX.LIST")));
+        } finally {
+            jar.close();
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        return read(new FileInputStream(file));
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String uri(File file) throws IOException {
+        return file.getCanonicalFile().toURI().getRawPath();
+    }
+}
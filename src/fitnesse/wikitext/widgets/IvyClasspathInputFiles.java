@@ -0,0 +1,179 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.net.URI;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.ivy.core.settings.IvySettings;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Finds the files a resolve depends on, besides the artifacts: the ivy/pom file, its (local) parents,
+ * the settings file and the files it pulls in through <tt>&lt;include&gt;</tt> and <tt>&lt;properties&gt;</tt>.
+ *
+ * <p>If one of those files changes, the classpath has to be resolved again.
+ * Files that can not be found or parsed are silently skipped, Ivy will complain about them anyway.
+ */
+class IvyClasspathInputFiles {
+
+    private IvyClasspathInputFiles() {
+    }
+
+    /**
+     * @return the ivy/pom file and the parent files it extends from.
+     */
+    static Set<File> forDescriptor(File descriptor, boolean isPom, IvySettings settings) {
+        Set<File> files = new LinkedHashSet<File>();
+        File file = descriptor.getAbsoluteFile();
+        while (file != null && file.isFile() && files.add(file)) {
+            ReferenceCollector collector = isPom ? new PomParentCollector() : new IvyExtendsCollector();
+            parse(file, collector);
+            file = collector.references.isEmpty() ? null : relativeTo(file, settings.substitute(collector.references.iterator().next()));
+        }
+        return files;
+    }
+
+    /**
+     * @return the settings file and all files included by it.
+     */
+    static Set<File> forSettings(File settingsFile, IvySettings settings) {
+        Set<File> files = new LinkedHashSet<File>();
+        addSettings(settingsFile.getAbsoluteFile(), settings, files);
+        return files;
+    }
+
+    private static void addSettings(File settingsFile, IvySettings settings, Set<File> files) {
+        if (!settingsFile.isFile() || !files.add(settingsFile)) {
+            return;
+        }
+        SettingsCollector collector = new SettingsCollector();
+        parse(settingsFile, collector);
+        for (String include: collector.references) {
+            addSettings(relativeTo(settingsFile, settings.substitute(include)), settings, files);
+        }
+        for (String url: collector.urls) {
+            String include = settings.substitute(url);
+            if (include.startsWith("file:")) {
+                addSettings(relativeTo(settingsFile, include), settings, files);
+            }
+        }
+        for (String properties: collector.properties) {
+            File file = relativeTo(settingsFile, settings.substitute(properties));
+            if (file.isFile()) {
+                files.add(file);
+            }
+        }
+    }
+
+    private static File relativeTo(File file, String path) {
+        if (path.startsWith("file:")) {
+            try {
+                return new File(new URI(path).normalize());
+            } catch (Exception e) {
+                path = path.substring("file:".length());
+            }
+        }
+        File relative = new File(path);
+        File absolute = relative.isAbsolute() ? relative : new File(file.getParentFile(), path);
+        return new File(absolute.toURI().normalize());
+    }
+
+    private static void parse(File file, DefaultHandler handler) {
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+            SAXParser parser = factory.newSAXParser();
+            parser.parse(file, handler);
+        } catch (Exception e) {
+            // Ivy will report problems with the file
+        }
+    }
+
+    private static class ReferenceCollector extends DefaultHandler {
+        final Set<String> references = new LinkedHashSet<String>();
+    }
+
+    private static class SettingsCollector extends ReferenceCollector {
+        final Set<String> urls = new LinkedHashSet<String>();
+        final Set<String> properties = new LinkedHashSet<String>();
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            if ("include".equals(qName)) {
+                String file = attributes.getValue("file");
+                String url = attributes.getValue("url");
+                if (file != null) {
+                    references.add(file);
+                } else if (url != null) {
+                    urls.add(url);
+                }
+            } else if ("properties".equals(qName) && attributes.getValue("file") != null) {
+                properties.add(attributes.getValue("file"));
+            }
+        }
+    }
+
+    /**
+     * Ivy files can extend another ivy file by location (&lt;extends location="../ivy.xml"/&gt;).
+     */
+    private static class IvyExtendsCollector extends ReferenceCollector {
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            if ("extends".equals(qName)) {
+                String location = attributes.getValue("location");
+                references.add(location != null ? location : "../ivy.xml");
+            }
+        }
+    }
+
+    /**
+     * Pom files refer to their parent by &lt;parent&gt;&lt;relativePath&gt;, which defaults to ../pom.xml.
+     * An empty relative path means the parent is only looked up in the repository.
+     */
+    private static class PomParentCollector extends ReferenceCollector {
+        private int depth;
+        private boolean inParent;
+        private boolean hasRelativePath;
+        private StringBuilder relativePath;
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            depth++;
+            if (depth == 2 && "parent".equals(qName)) {
+                inParent = true;
+            } else if (inParent && "relativePath".equals(qName)) {
+                hasRelativePath = true;
+                relativePath = new StringBuilder();
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (relativePath != null) {
+                relativePath.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            depth--;
+            if (inParent && "relativePath".equals(qName)) {
+                String path = relativePath.toString().trim();
+                if (path.length() > 0) {
+                    references.add(path.endsWith(".xml") ? path : path + "/pom.xml");
+                }
+                relativePath = null;
+            } else if (inParent && depth == 1) {
+                if (!hasRelativePath) {
+                    references.add("../pom.xml");
+                }
+                inParent = false;
+            }
+        }
+    }
+}
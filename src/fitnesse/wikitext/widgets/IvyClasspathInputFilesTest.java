@@ -0,0 +1,75 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.ivy.core.settings.IvySettings;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+public class IvyClasspathInputFilesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final IvySettings settings = new IvySettings();
+
+    @Test
+    public void collectsIncludedSettingsAndPropertyFiles() throws IOException {
+        File settingsFile = write("ivysettings.xml", "<ivysettings>" +
+                "<properties file=\"ivy.properties\"/>" +
+                "<include file=\"sub/ivysettings-shared.xml\"/>" +
+                "</ivysettings>");
+        File properties = write("ivy.properties", "a=b");
+        File shared = write("sub/ivysettings-shared.xml", "<ivysettings><include url=\"${my.dir}/ivysettings-resolvers.xml\"/></ivysettings>");
+        File resolvers = write("ivysettings-resolvers.xml", "<ivysettings/>");
+        settings.setVariable("my.dir", folder.getRoot().toURI().toString());
+
+        assertEquals(Arrays.asList(settingsFile, shared, resolvers, properties),
+                new ArrayList<File>(IvyClasspathInputFiles.forSettings(settingsFile, settings)));
+    }
+
+    @Test
+    public void collectsLocalParentPoms() throws IOException {
+        File pom = write("project/module/pom.xml", "<project><parent><artifactId>parent</artifactId></parent></project>");
+        File parent = write("project/pom.xml", "<project><parent><relativePath>../root/root-pom.xml</relativePath></parent></project>");
+        File root = write("root/root-pom.xml", "<project><parent><relativePath/></parent></project>");
+
+        assertEquals(Arrays.asList(pom, parent, root),
+                new ArrayList<File>(IvyClasspathInputFiles.forDescriptor(pom, true, settings)));
+    }
+
+    @Test
+    public void collectsExtendedIvyFiles() throws IOException {
+        File ivyXml = write("module/ivy.xml", "<ivy-module><info><extends organisation='o' module='m' revision='1'/></info></ivy-module>");
+        File parent = write("ivy.xml", "<ivy-module><info/></ivy-module>");
+
+        assertEquals(Arrays.asList(ivyXml, parent),
+                new ArrayList<File>(IvyClasspathInputFiles.forDescriptor(ivyXml, false, settings)));
+    }
+
+    @Test
+    public void ignoresMissingParents() throws IOException {
+        File pom = write("pom.xml", "<project><parent><artifactId>parent</artifactId></parent></project>");
+
+        assertEquals(Arrays.asList(pom), new ArrayList<File>(IvyClasspathInputFiles.forDescriptor(pom, true, settings)));
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        file.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
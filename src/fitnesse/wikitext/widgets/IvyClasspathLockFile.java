@@ -0,0 +1,213 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.ivy.util.MessageLogger;
+
+/**
+ * A lock file holds the outcome of a resolve: the exact artifacts, with their checksums.
+ *
+ * <p>With <tt>!resolve -lock ivy.lock</tt> the lock file is written after the first resolution.
+ * From then on the classpath is read from the lock file, without involving Ivy at all,
+ * until the ivy/pom file or settings file changes, or one of the artifacts is changed or removed.
+ * The format is like the one of the {@link IvyClasspathStore}, with a fingerprint for every artifact:
+ * <pre>
+ * cache    &lt;Ivy cache directory&gt;
+ * input    &lt;length&gt; &lt;last modified&gt; &lt;sha1&gt; &lt;path&gt;
+ * artifact &lt;length&gt; &lt;last modified&gt; &lt;sha1&gt; &lt;path&gt;
+ * </pre>
+ * To make the lock file work on other machines, inputs are written relative to the directory of the lock file,
+ * and artifacts relative to the Ivy cache, with forward slashes. Files elsewhere are written as absolute paths.
+ * The Ivy cache itself is written relative to the lock file if it's in the same directory tree, relative to the
+ * home directory (as <tt>~/.ivy2/cache</tt>) if it's in there, or else as an absolute path.
+ * A changed last modified time (as after a checkout) is not a change, as long as the checksum is the same.
+ */
+class IvyClasspathLockFile {
+
+    private static final String HEADER = "# fitnesse-ivy-classpath lock 2";
+    private static final String INPUT = "input";
+    private static final String ARTIFACT = "artifact";
+    private static final String CACHE = "cache";
+    private static final String HOME = "~/";
+
+    private static final MessageLogger LOGGER = new IvyClasspathMessageLogger();
+
+    private final File file;
+
+    IvyClasspathLockFile(File file) {
+        this.file = file;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the locked classpath, or null if there is no lock file, or if it's out of date.
+     */
+    IvyClasspathSymbolType.CacheElement read() {
+        List<IvyClasspathFingerprint> inputs = new ArrayList<IvyClasspathFingerprint>(2);
+        List<IvyClasspathFingerprint> artifacts = new ArrayList<IvyClasspathFingerprint>();
+        if (!read(inputs, artifacts)) {
+            return null;
+        }
+        List<File> dependencies = new ArrayList<File>(artifacts.size());
+        for (IvyClasspathFingerprint artifact: artifacts) {
+            if (!artifact.matches()) {
+                return null;
+            }
+            dependencies.add(artifact.getFile());
+        }
+        IvyClasspathSymbolType.CacheElement element = new IvyClasspathSymbolType.CacheElement(
+                Collections.unmodifiableList(inputs), dependencies);
+        return inputs.isEmpty() || element.modified() ? null : element;
+    }
+
+    /**
+     * @return false if there is no lock file, or it can't be read.
+     */
+    private boolean read(List<IvyClasspathFingerprint> inputs, List<IvyClasspathFingerprint> artifacts) {
+        if (!file.isFile()) {
+            return false;
+        }
+        File lockDir = file.getAbsoluteFile().getParentFile();
+        // Lock files without a cache line have their artifacts in the default cache, if not at absolute paths
+        File cacheDir = IvyClasspathStore.ivyCacheDir();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                if (!HEADER.equals(reader.readLine())) {
+                    return false;
+                }
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", 2);
+                    if (CACHE.equals(fields[0]) && fields.length == 2) {
+                        cacheDir = resolveCacheDir(lockDir, fields[1]);
+                        continue;
+                    }
+                    IvyClasspathFingerprint fingerprint = fields.length == 2 ? IvyClasspathFingerprint.parse(fields[1]) : null;
+                    if (fingerprint == null) {
+                        continue;
+                    } else if (INPUT.equals(fields[0])) {
+                        inputs.add(resolve(lockDir, fingerprint));
+                    } else if (ARTIFACT.equals(fields[0])) {
+                        artifacts.add(resolve(cacheDir, fingerprint));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read lock file " + file + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write the classpath. Artifacts are only hashed if they are not in the lock file yet with the same size
+     * and last modified time.
+     * @param cacheDir the Ivy cache that the artifacts are in
+     */
+    void write(IvyClasspathSymbolType.CacheElement element, File cacheDir) throws IOException {
+        Map<File, IvyClasspathFingerprint> locked = new HashMap<File, IvyClasspathFingerprint>();
+        List<IvyClasspathFingerprint> artifacts = new ArrayList<IvyClasspathFingerprint>();
+        if (read(new ArrayList<IvyClasspathFingerprint>(), artifacts)) {
+            for (IvyClasspathFingerprint artifact: artifacts) {
+                locked.put(artifact.getFile().getAbsoluteFile(), artifact);
+            }
+        }
+
+        File lockDir = file.getAbsoluteFile().getParentFile();
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            writer.write(CACHE + "\t" + formatCacheDir(lockDir, cacheDir) + "\n");
+            for (IvyClasspathFingerprint input: element.inputs) {
+                writer.write(INPUT + "\t" + format(lockDir, input) + "\n");
+            }
+            for (File dependency: element.dependencies) {
+                IvyClasspathFingerprint artifact = locked.get(dependency.getAbsoluteFile());
+                if (artifact == null || artifact.getLength() != dependency.length()
+                        || artifact.getLastModified() != dependency.lastModified() || artifact.getLastModified() == 0L) {
+                    artifact = IvyClasspathFingerprint.of(dependency);
+                }
+                writer.write(ARTIFACT + "\t" + format(cacheDir, artifact) + "\n");
+            }
+        } catch (IOException e) {
+            writer.close();
+            tmp.delete();
+            throw e;
+        } finally {
+            writer.close();
+        }
+        IvyClasspathStore.replace(file, tmp);
+    }
+
+    /**
+     * @return the fingerprint as written by {@link IvyClasspathFingerprint#format()}, with the path relative
+     * to <tt>dir</tt> if the file is in there.
+     */
+    private static String format(File dir, IvyClasspathFingerprint fingerprint) {
+        return fingerprint.getLength() + "\t" + fingerprint.getLastModified() + "\t" + fingerprint.getDigest() + "\t"
+                + relativePath(dir, fingerprint.getFile());
+    }
+
+    /**
+     * @return the cache directory relative to the lock file or the home directory, if it's in there.
+     */
+    private static String formatCacheDir(File lockDir, File cacheDir) {
+        String relative = relativePath(lockDir, cacheDir);
+        if (!new File(relative).isAbsolute()) {
+            return relative;
+        }
+        relative = relativePath(new File(System.getProperty("user.home")), cacheDir);
+        return new File(relative).isAbsolute() ? relative : HOME + relative;
+    }
+
+    private static File resolveCacheDir(File lockDir, String cacheDir) {
+        if (cacheDir.startsWith(HOME)) {
+            return new File(System.getProperty("user.home"), cacheDir.substring(HOME.length()));
+        }
+        File dir = new File(cacheDir);
+        return dir.isAbsolute() ? dir : new File(lockDir, cacheDir);
+    }
+
+    /**
+     * @return the path of <tt>file</tt> relative to <tt>dir</tt>, with forward slashes, or its absolute path
+     * if it is not in <tt>dir</tt>.
+     */
+    private static String relativePath(File dir, File file) {
+        String path = file.getAbsolutePath();
+        String prefix = dir.getAbsolutePath() + File.separator;
+        if (path.equals(dir.getAbsolutePath())) {
+            return ".";
+        }
+        return path.startsWith(prefix) ? path.substring(prefix.length()).replace(File.separatorChar, '/') : path;
+    }
+
+    private static IvyClasspathFingerprint resolve(File dir, IvyClasspathFingerprint fingerprint) {
+        File file = fingerprint.getFile();
+        if (file.isAbsolute()) {
+            return fingerprint;
+        }
+        return new IvyClasspathFingerprint(new File(dir, file.getPath()), fingerprint.getLength(),
+                fingerprint.getLastModified(), fingerprint.getDigest());
+    }
+}
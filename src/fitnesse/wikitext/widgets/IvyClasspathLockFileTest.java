@@ -0,0 +1,143 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class IvyClasspathLockFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String userHome;
+    private File ivyFile;
+    private List<File> artifacts;
+    private IvyClasspathLockFile lockFile;
+
+    @Before
+    public void setUp() throws IOException {
+        userHome = System.getProperty("user.home");
+        System.setProperty("user.home", new File(folder.getRoot(), "home").getPath());
+        ivyFile = write("project/ivy.xml", "<ivy-module/>");
+        artifacts = Arrays.asList(write("home/cache/org/a/jars/a.jar", "a"), write("home/cache/org/b/jars/b.jar", "b"));
+        lockFile = new IvyClasspathLockFile(new File(folder.getRoot(), "project/ivy.lock"));
+        lockFile.write(new IvyClasspathSymbolType.CacheElement(
+                Collections.singletonList(IvyClasspathFingerprint.of(ivyFile)), artifacts), new File(folder.getRoot(), "home/cache"));
+    }
+
+    @After
+    public void restoreUserHome() {
+        System.setProperty("user.home", userHome);
+    }
+
+    @Test
+    public void readsLockedClasspath() {
+        IvyClasspathSymbolType.CacheElement element = lockFile.read();
+
+        assertNotNull(element);
+        assertEquals(artifacts, element.dependencies);
+        assertEquals(ivyFile, element.inputs.get(0).getFile());
+    }
+
+    @Test
+    public void lockIsOutdatedWhenIvyFileChanges() throws IOException {
+        write("project/ivy.xml", "<ivy-module version='2.0'/>");
+
+        assertNull(lockFile.read());
+    }
+
+    @Test
+    public void lockIsOutdatedWhenAnArtifactChanges() throws IOException {
+        write("home/cache/org/b/jars/b.jar", "c");
+        assertTrue(artifacts.get(1).setLastModified(artifacts.get(1).lastModified() + 60000));
+
+        assertNull(lockFile.read());
+    }
+
+    @Test
+    public void lockIsOutdatedWhenAnArtifactIsRemoved() {
+        assertTrue(artifacts.get(0).delete());
+
+        assertNull(lockFile.read());
+    }
+
+    @Test
+    public void missingLockFileHasNoClasspath() {
+        assertNull(new IvyClasspathLockFile(new File(folder.getRoot(), "other.lock")).read());
+    }
+
+    @Test
+    public void lockHoldsNoLocalPaths() throws IOException {
+        String lock = read(lockFile.getFile());
+
+        assertFalse(lock, lock.contains(folder.getRoot().getPath()));
+        assertTrue(lock, lock.contains("cache\t~/cache\n"));
+        assertTrue(lock, lock.contains("\tivy.xml\n"));
+        assertTrue(lock, lock.contains("\torg/a/jars/a.jar\n"));
+    }
+
+    @Test
+    public void lockWorksOnAnotherMachine() throws IOException {
+        System.setProperty("user.home", new File(folder.getRoot(), "other-home").getPath());
+        File otherIvyFile = write("other/ivy.xml", "<ivy-module/>");
+        File a = write("other-home/cache/org/a/jars/a.jar", "a");
+        File b = write("other-home/cache/org/b/jars/b.jar", "b");
+        File otherLock = write("other/ivy.lock", read(lockFile.getFile()));
+
+        IvyClasspathSymbolType.CacheElement element = new IvyClasspathLockFile(otherLock).read();
+
+        assertNotNull(element);
+        assertEquals(Arrays.asList(a, b), element.dependencies);
+        assertEquals(otherIvyFile, element.inputs.get(0).getFile());
+    }
+
+    @Test
+    public void checksumsOfLockedArtifactsAreReused() throws IOException {
+        String digest = IvyClasspathFingerprint.of(artifacts.get(0)).getDigest();
+        write("project/ivy.lock", read(lockFile.getFile()).replace(digest, "0123456789"));
+
+        lockFile.write(new IvyClasspathSymbolType.CacheElement(
+                Collections.singletonList(IvyClasspathFingerprint.of(ivyFile)), artifacts), new File(folder.getRoot(), "home/cache"));
+
+        assertTrue(read(lockFile.getFile()).contains("0123456789"));
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private static String read(File file) throws IOException {
+        StringBuilder content = new StringBuilder();
+        FileReader reader = new FileReader(file);
+        try {
+            char[] buffer = new char[1024];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                content.append(buffer, 0, read);
+            }
+        } finally {
+            reader.close();
+        }
+        return content.toString();
+    }
+}
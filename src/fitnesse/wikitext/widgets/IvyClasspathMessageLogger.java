@@ -1,14 +1,37 @@
 package fitnesse.wikitext.widgets;
 
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.apache.ivy.util.AbstractMessageLogger;
 import org.apache.ivy.util.Message;
 
 /**
  * A simplified message logger. It's not as verbose as the default message loggers.
+ *
+ * <p>Messages are not printed by the thread that logs them. They are put in a ring buffer that is written
+ * to <tt>System.out</tt> by a background thread, in batches. If the buffer is full, messages are dropped
+ * (and counted) rather than slowing down the resolve.
+ *
+ * <p>While a resolve is running, its messages are tagged with the cache key, and its warnings and errors
+ * are collected, so they can be shown with the classpath.
  */
 class IvyClasspathMessageLogger extends AbstractMessageLogger {
+
+    private static final int BUFFER_SIZE = 8192;
+    // Warnings and errors kept per resolve
+    private static final int MAX_COLLECTED = 50;
+
+    private static final Output OUTPUT = new Output(BUFFER_SIZE).start();
+
     private int level;
 
+    // Cache key of the resolve in progress, and its warnings and errors
+    private volatile String tag;
+    private volatile List<String> collected;
+
     /**
      * @param level
      */
@@ -46,7 +69,8 @@ class IvyClasspathMessageLogger extends AbstractMessageLogger {
 
     public void log(String msg, int level) {
         if (level <= this.level) {
-            System.out.println(msg);
+            String tag = this.tag;
+            OUTPUT.add(tag == null ? msg : "[" + tag + "] " + msg);
         }
     }
 
@@ -58,10 +82,158 @@ class IvyClasspathMessageLogger extends AbstractMessageLogger {
     }
 
     public void doEndProgress(String msg) {
-        System.out.println(msg);
+        OUTPUT.add(msg);
     }
 
     public int getLevel() {
         return level;
     }
+
+    @Override
+    public void warn(String msg) {
+        super.warn(msg);
+        collect("WARN:" + msg);
+    }
+
+    @Override
+    public void error(String msg) {
+        super.error(msg);
+        collect("ERROR:" + msg);
+    }
+
+    private void collect(String msg) {
+        List<String> messages = collected;
+        if (messages != null) {
+            synchronized (messages) {
+                if (messages.size() < MAX_COLLECTED) {
+                    messages.add(msg);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tag the messages that follow with a cache key, and collect the warnings and errors.
+     */
+    void startCollecting(String tag) {
+        this.tag = tag;
+        this.collected = new ArrayList<String>();
+    }
+
+    /**
+     * @return the warnings and errors collected so far.
+     */
+    List<String> getCollected() {
+        List<String> messages = collected;
+        if (messages == null) {
+            return Collections.emptyList();
+        }
+        synchronized (messages) {
+            return messages.isEmpty() ? Collections.<String>emptyList() : Collections.unmodifiableList(new ArrayList<String>(messages));
+        }
+    }
+
+    void stopCollecting() {
+        tag = null;
+        collected = null;
+    }
+
+    /**
+     * Write the messages logged so far. Messages are written in the background, so this is only needed
+     * when they should be visible right away.
+     */
+    static void flush() {
+        OUTPUT.drain();
+    }
+
+    /**
+     * Ring buffer of messages, written by a background thread.
+     */
+    static class Output implements Runnable {
+        private final String[] buffer;
+        private int head;
+        private int size;
+        private long dropped;
+        // Held while writing, so batches are written in order
+        private final Object writeLock = new Object();
+
+        Output(int capacity) {
+            buffer = new String[capacity];
+        }
+
+        Output start() {
+            Thread drainer = new Thread(this, "ivy-classpath-log");
+            drainer.setDaemon(true);
+            drainer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread("ivy-classpath-log-flush") {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+            return this;
+        }
+
+        synchronized void add(String msg) {
+            if (size == buffer.length) {
+                dropped++;
+                return;
+            }
+            buffer[(head + size) % buffer.length] = msg;
+            if (size++ == 0) {
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    synchronized (this) {
+                        while (size == 0 && dropped == 0) {
+                            wait();
+                        }
+                    }
+                    drain();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Write the messages in the buffer to <tt>System.out</tt>.
+         */
+        void drain() {
+            synchronized (writeLock) {
+                String[] messages;
+                long lost;
+                synchronized (this) {
+                    messages = new String[size];
+                    for (int i = 0; i < size; i++) {
+                        messages[i] = buffer[(head + i) % buffer.length];
+                        buffer[(head + i) % buffer.length] = null;
+                    }
+                    head = (head + size) % buffer.length;
+                    size = 0;
+                    lost = dropped;
+                    dropped = 0;
+                }
+                if (messages.length == 0 && lost == 0) {
+                    return;
+                }
+                String newLine = System.getProperty("line.separator");
+                StringBuilder text = new StringBuilder(messages.length * 64);
+                for (String message: messages) {
+                    text.append(message).append(newLine);
+                }
+                if (lost > 0) {
+                    text.append("... ").append(lost).append(" Ivy message(s) dropped, the log buffer was full").append(newLine);
+                }
+                PrintStream out = System.out;
+                out.print(text);
+                out.flush();
+            }
+        }
+    }
 }
@@ -0,0 +1,95 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.ivy.util.Message;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IvyClasspathMessageLoggerTest {
+
+    private static final String NL = System.getProperty("line.separator");
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private PrintStream systemOut;
+
+    @Before
+    public void captureSystemOut() {
+        IvyClasspathMessageLogger.flush();
+        systemOut = System.out;
+        System.setOut(new PrintStream(out, true));
+    }
+
+    @After
+    public void restoreSystemOut() {
+        IvyClasspathMessageLogger.flush();
+        System.setOut(systemOut);
+    }
+
+    @Test
+    public void writesMessagesInTheBackground() throws Exception {
+        IvyClasspathMessageLogger logger = new IvyClasspathMessageLogger();
+        logger.setLoglevel("info");
+
+        logger.info("first");
+        logger.verbose("too detailed");
+        logger.log("second", Message.MSG_WARN);
+        for (int i = 0; i < 100 && out.size() == 0; i++) {
+            Thread.sleep(10);
+        }
+        IvyClasspathMessageLogger.flush();
+
+        assertEquals("first" + NL + "second" + NL, out.toString());
+    }
+
+    @Test
+    public void tagsMessagesOfAResolve() {
+        IvyClasspathMessageLogger logger = new IvyClasspathMessageLogger();
+        logger.setLoglevel("info");
+
+        logger.startCollecting("ivy.xml#**#default");
+        logger.info("resolving");
+        logger.stopCollecting();
+        logger.info("done");
+        IvyClasspathMessageLogger.flush();
+
+        assertEquals("[ivy.xml#**#default] resolving" + NL + "done" + NL, out.toString());
+    }
+
+    @Test
+    public void collectsWarningsAndErrorsOfAResolve() {
+        IvyClasspathMessageLogger logger = new IvyClasspathMessageLogger();
+
+        logger.warn("before");
+        logger.startCollecting("key");
+        logger.info("not collected");
+        logger.warn("missing artifact");
+        logger.error("unresolved dependency");
+
+        assertEquals(Arrays.asList("WARN:missing artifact", "ERROR:unresolved dependency"), logger.getCollected());
+        logger.stopCollecting();
+        assertEquals(Collections.emptyList(), logger.getCollected());
+    }
+
+    @Test
+    public void dropsMessagesWhenTheBufferIsFull() {
+        IvyClasspathMessageLogger.Output output = new IvyClasspathMessageLogger.Output(4);
+
+        for (int i = 0; i < 10; i++) {
+            output.add("message " + i);
+        }
+        output.drain();
+        output.add("message 10");
+        output.drain();
+
+        assertEquals("message 0" + NL + "message 1" + NL + "message 2" + NL + "message 3" + NL
+                + "... 6 Ivy message(s) dropped, the log buffer was full" + NL
+                + "message 10" + NL, out.toString());
+    }
+}
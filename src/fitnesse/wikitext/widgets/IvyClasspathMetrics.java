@@ -0,0 +1,264 @@
+package fitnesse.wikitext.widgets;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.ivy.util.MessageLogger;
+
+/**
+ * Statistics on classpath resolution: cache effectiveness, how often and how long classpaths are resolved,
+ * and where the time goes (reading settings, resolving, downloading).
+ *
+ * <p>The metrics of the plugin instance are registered with JMX as
+ * <tt>fitnesse.wikitext.widgets:type=IvyClasspath</tt>, and are shown by {@link IvyClasspathResponder}.
+ */
+class IvyClasspathMetrics implements IvyClasspathMetricsMBean {
+
+    static final String OBJECT_NAME = "fitnesse.wikitext.widgets:type=IvyClasspath";
+
+    private static final MessageLogger LOGGER = new IvyClasspathMessageLogger();
+
+    private final IvyClasspathCache cache;
+
+    private final ConcurrentMap<String, AtomicLong> resolvesPerKey = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong resolves = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong incrementalResolves = new AtomicLong();
+    // In microseconds
+    private final Histogram resolveLatency = new Histogram();
+    private final Histogram artifacts = new Histogram();
+
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+    private final AtomicLong settingsTime = new AtomicLong();
+    private final AtomicLong ivyResolveTime = new AtomicLong();
+    private final AtomicLong downloadTime = new AtomicLong();
+
+    IvyClasspathMetrics(IvyClasspathCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Make these the metrics shown by JMX, replacing earlier ones.
+     */
+    void register() {
+        synchronized (IvyClasspathMetrics.class) {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName(OBJECT_NAME);
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+                server.registerMBean(this, name);
+            } catch (JMException e) {
+                LOGGER.warn("Unable to register " + OBJECT_NAME + " with JMX: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Register a completed resolve of a classpath that was neither cached nor stored.
+     */
+    void recordResolve(String cacheKey, long nanos, int artifactCount) {
+        count(cacheKey);
+        resolves.incrementAndGet();
+        resolveLatency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+        artifacts.record(artifactCount);
+    }
+
+    void recordFailure(String cacheKey, long nanos) {
+        count(cacheKey);
+        failures.incrementAndGet();
+        resolveLatency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    private void count(String cacheKey) {
+        AtomicLong count = resolvesPerKey.get(cacheKey);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = resolvesPerKey.putIfAbsent(cacheKey, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Register a resolve of a changed descriptor that only resolved the dependencies that changed.
+     */
+    void recordIncrementalResolve() {
+        incrementalResolves.incrementAndGet();
+    }
+
+    /**
+     * Register the time it took to get an Ivy engine configured with the settings file.
+     */
+    void recordSettings(long nanos) {
+        settingsTime.addAndGet(nanos);
+    }
+
+    /**
+     * Register the outcome of the Ivy resolve itself.
+     * @param nanos total time, including the download
+     * @param downloadMillis time spent on downloading artifacts, as reported by Ivy
+     * @param bytes size of the downloaded artifacts
+     */
+    void recordIvyResolve(long nanos, long downloadMillis, long bytes) {
+        long downloadNanos = TimeUnit.MILLISECONDS.toNanos(downloadMillis);
+        ivyResolveTime.addAndGet(Math.max(0L, nanos - downloadNanos));
+        downloadTime.addAndGet(downloadNanos);
+        bytesDownloaded.addAndGet(bytes);
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cache.getHits();
+    }
+
+    @Override
+    public long getStaleCacheHits() {
+        return cache.getStaleHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cache.getMisses();
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return cache.getEvictions();
+    }
+
+    @Override
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    @Override
+    public long getResolves() {
+        return resolves.get();
+    }
+
+    @Override
+    public long getResolveFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public long getIncrementalResolves() {
+        return incrementalResolves.get();
+    }
+
+    @Override
+    public long getResolveTimeP50() {
+        return resolveLatency.percentile(50) / 1000;
+    }
+
+    @Override
+    public long getResolveTimeP99() {
+        return resolveLatency.percentile(99) / 1000;
+    }
+
+    @Override
+    public long getArtifactsPerClasspathP50() {
+        return artifacts.percentile(50);
+    }
+
+    @Override
+    public long getArtifactsPerClasspathP99() {
+        return artifacts.percentile(99);
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    @Override
+    public long getSettingsTime() {
+        return TimeUnit.NANOSECONDS.toMillis(settingsTime.get());
+    }
+
+    @Override
+    public long getIvyResolveTime() {
+        return TimeUnit.NANOSECONDS.toMillis(ivyResolveTime.get());
+    }
+
+    @Override
+    public long getDownloadTime() {
+        return TimeUnit.NANOSECONDS.toMillis(downloadTime.get());
+    }
+
+    @Override
+    public Map<String, Long> getResolvesPerKey() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry: resolvesPerKey.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+    /**
+     * A histogram with buckets that are about 19% apart, so percentiles are accurate within 19%.
+     * Recording a value is lock free.
+     */
+    static class Histogram {
+        // Bucket i holds the values up to 2^(i/4)
+        private static final int BUCKETS = 160;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+
+        void record(long value) {
+            counts.incrementAndGet(bucket(value));
+            count.incrementAndGet();
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the given percentile, 0 if nothing has been recorded.
+         */
+        long percentile(double percentile) {
+            long total = count.get();
+            if (total == 0) {
+                return 0L;
+            }
+            long rank = Math.max(1L, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        private static int bucket(long value) {
+            if (value <= 1) {
+                return 0;
+            }
+            int bucket = (int) Math.ceil(4 * Math.log(value) / Math.log(2));
+            return Math.min(bucket, BUCKETS - 1);
+        }
+
+        private static long upperBound(int bucket) {
+            return (long) Math.floor(Math.pow(2, bucket / 4.0));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package fitnesse.wikitext.widgets;
+
+import java.util.Map;
+
+/**
+ * JMX view on {@link IvyClasspathMetrics}. Times are in milliseconds.
+ */
+public interface IvyClasspathMetricsMBean {
+
+    long getCacheHits();
+
+    /**
+     * @return the number of times a stale classpath was served while it was resolved again in the background;
+     * these are not included in {@link #getCacheHits()}.
+     */
+    long getStaleCacheHits();
+
+    long getCacheMisses();
+
+    long getCacheEvictions();
+
+    int getCacheSize();
+
+    long getResolves();
+
+    long getResolveFailures();
+
+    /**
+     * @return the number of resolves that only resolved the dependencies that changed; these are included in
+     * {@link #getResolves()}.
+     */
+    long getIncrementalResolves();
+
+    long getResolveTimeP50();
+
+    long getResolveTimeP99();
+
+    long getArtifactsPerClasspathP50();
+
+    long getArtifactsPerClasspathP99();
+
+    long getBytesDownloaded();
+
+    long getSettingsTime();
+
+    long getIvyResolveTime();
+
+    long getDownloadTime();
+
+    /**
+     * @return the number of resolves per cache key (dependency file, settings file and configurations).
+     */
+    Map<String, Long> getResolvesPerKey();
+}
@@ -0,0 +1,93 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import fitnesse.http.MockRequest;
+import fitnesse.http.SimpleResponse;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class IvyClasspathMetricsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void histogramPercentilesAreWithinBucketPrecision() {
+        IvyClasspathMetrics.Histogram histogram = new IvyClasspathMetrics.Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertTrue(String.valueOf(histogram.percentile(50)), histogram.percentile(50) >= 500 && histogram.percentile(50) < 600);
+        assertTrue(String.valueOf(histogram.percentile(99)), histogram.percentile(99) >= 990 && histogram.percentile(99) < 1200);
+    }
+
+    @Test
+    public void emptyHistogramHasNoPercentiles() {
+        assertEquals(0, new IvyClasspathMetrics.Histogram().percentile(99));
+    }
+
+    @Test
+    public void recordsResolvesAndCacheHits() throws Exception {
+        IvyClasspathTestRepository repository = new IvyClasspathTestRepository(folder.getRoot(), 2, 2, 3).create();
+        IvyClasspathSymbolType symbolType = new IvyClasspathSymbolType(IvyClasspathCache.fromSystemProperties(), new IvyClasspathStore(null));
+        String ivyXml = repository.getIvyFile().getPath();
+        String settingsXml = repository.getSettingsFile().getPath();
+
+        symbolType.getClasspathElements(ivyXml, settingsXml, "default", false, null);
+        symbolType.getClasspathElements(ivyXml, settingsXml, "default", false, null);
+
+        IvyClasspathMetrics metrics = symbolType.getMetrics();
+        assertEquals(1, metrics.getResolves());
+        assertEquals(0, metrics.getResolveFailures());
+        assertEquals(1, metrics.getCacheHits());
+        assertEquals(1, metrics.getCacheMisses());
+        assertEquals(1, metrics.getResolvesPerKey().size());
+        assertEquals(Long.valueOf(1), metrics.getResolvesPerKey().values().iterator().next());
+        assertTrue(metrics.getArtifactsPerClasspathP50() >= repository.getArtifactCount());
+        assertTrue(metrics.getBytesDownloaded() > 0);
+    }
+
+    @Test
+    public void recordsFailures() {
+        IvyClasspathSymbolType symbolType = new IvyClasspathSymbolType(IvyClasspathCache.fromSystemProperties(), new IvyClasspathStore(null));
+        try {
+            symbolType.getClasspathElements(new File(folder.getRoot(), "missing.xml").getPath(), null, "*", false, null);
+            fail("Should not resolve a missing file");
+        } catch (IvyClasspathException e) {
+            // expected
+        }
+
+        assertEquals(0, symbolType.getMetrics().getResolves());
+        assertEquals(1, symbolType.getMetrics().getResolveFailures());
+    }
+
+    @Test
+    public void registersWithJmx() throws Exception {
+        IvyClasspathMetrics metrics = new IvyClasspathMetrics(IvyClasspathCache.fromSystemProperties());
+        metrics.register();
+
+        assertEquals(0L, ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName(IvyClasspathMetrics.OBJECT_NAME), "Resolves"));
+    }
+
+    @Test
+    public void responderRendersMetrics() throws Exception {
+        new IvyClasspathSymbolType(IvyClasspathCache.fromSystemProperties(), new IvyClasspathStore(null)).register();
+        MockRequest request = new MockRequest();
+
+        SimpleResponse html = (SimpleResponse) new IvyClasspathResponder().makeResponse(null, request);
+        request.addInput("format", "text");
+        SimpleResponse text = (SimpleResponse) new IvyClasspathResponder().makeResponse(null, request);
+
+        assertTrue(html.getContent(), html.getContent().contains("<tr><td>resolves</td><td>0</td></tr>"));
+        assertTrue(text.getContent(), text.getContent().contains("\nresolves 0\n"));
+    }
+}
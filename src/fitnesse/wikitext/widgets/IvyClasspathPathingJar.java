@@ -0,0 +1,77 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Writes pathing jars: jars holding nothing but a manifest, with a <tt>Class-Path</tt> that lists the artifacts
+ * of a classpath. A test system started with <tt>!resolve -pathing-jar</tt> gets just the pathing jar on its
+ * command line, instead of one path per artifact.
+ *
+ * <p>A pathing jar is named after a fingerprint of the classpath (the paths, sizes and modification times of its
+ * artifacts), so it is written once and reused by every classpath with the same artifacts. The jars are kept in
+ * <tt>fitnesse-ivy-classpath-pathing</tt> in the Ivy cache directory, or in the directory set by the system property
+ * <tt>ivy.classpath.pathingjar.dir</tt>.
+ */
+class IvyClasspathPathingJar {
+
+    static final String DIR_PROPERTY = "ivy.classpath.pathingjar.dir";
+
+    private final File dir;
+
+    IvyClasspathPathingJar(File dir) {
+        this.dir = dir;
+    }
+
+    static IvyClasspathPathingJar fromSystemProperties() {
+        String location = System.getProperty(DIR_PROPERTY);
+        return new IvyClasspathPathingJar(location == null || "".equals(location)
+                ? new File(IvyClasspathStore.ivyCacheDir(), "fitnesse-ivy-classpath-pathing")
+                : new File(location));
+    }
+
+    /**
+     * @return the pathing jar for the paths, written if it does not exist yet.
+     */
+    synchronized File write(List<String> paths) throws IOException {
+        List<File> files = new ArrayList<File>(paths.size());
+        for (String path: paths) {
+            files.add(new File(path));
+        }
+        File pathingJar = new File(dir, IvyClasspathFingerprint.digestOfAll(files) + ".jar");
+        if (pathingJar.isFile()) {
+            return pathingJar;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+
+        // Entries are URLs: absolute, with spaces and such escaped, and directories ending in a slash
+        StringBuilder classPath = new StringBuilder(files.size() * 100);
+        for (File file: files) {
+            if (classPath.length() > 0) {
+                classPath.append(' ');
+            }
+            String url = file.getAbsoluteFile().toURI().toASCIIString();
+            classPath.append(url);
+            if (file.isDirectory() && !url.endsWith("/")) {
+                classPath.append('/');
+            }
+        }
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.CLASS_PATH, classPath.toString());
+
+        File tmp = new File(dir, pathingJar.getName() + ".tmp");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(tmp), manifest);
+        out.close();
+        IvyClasspathIndex.rename(tmp, pathingJar);
+        return pathingJar;
+    }
+}
@@ -0,0 +1,90 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class IvyClasspathPathingJarTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesManifestWithClassPath() throws Exception {
+        File a = jar("a.jar", "org/a/A.class");
+        File b = jar("with space.jar", "org/b/B.class");
+        IvyClasspathPathingJar pathingJars = new IvyClasspathPathingJar(folder.newFolder("pathing"));
+
+        File pathingJar = pathingJars.write(Arrays.asList(a.getPath(), b.getPath()));
+
+        JarFile jar = new JarFile(pathingJar);
+        try {
+            assertEquals(a.toURI().toASCIIString() + " " + b.toURI().toASCIIString(),
+                    jar.getManifest().getMainAttributes().getValue(Attributes.Name.CLASS_PATH));
+            assertEquals("only the manifest", 1, jar.size());
+        } finally {
+            jar.close();
+        }
+    }
+
+    @Test
+    public void writesPathingJarOnce() throws Exception {
+        List<String> paths = Arrays.asList(jar("a.jar", "org/a/A.class").getPath());
+        IvyClasspathPathingJar pathingJars = new IvyClasspathPathingJar(folder.newFolder("pathing"));
+
+        File pathingJar = pathingJars.write(paths);
+        pathingJar.setLastModified(1000L);
+
+        assertEquals(pathingJar, pathingJars.write(paths));
+        assertEquals(1000L, pathingJar.lastModified());
+        assertFalse(pathingJar.equals(pathingJars.write(Arrays.asList(jar("b.jar", "org/b/B.class").getPath()))));
+    }
+
+    @Test
+    public void classesAreFoundThroughThePathingJar() throws Exception {
+        File classes = folder.newFolder("classes dir");
+        File resource = new File(classes, "dir.properties");
+        new FileOutputStream(resource).close();
+        List<String> paths = Arrays.asList(jar("a.jar", "org/a/A.class").getPath(),
+                jar("with space.jar", "org/b/B.class").getPath(), classes.getPath());
+        File pathingJar = new IvyClasspathPathingJar(folder.newFolder("pathing")).write(paths);
+        URLClassLoader loader = new URLClassLoader(new URL[] { pathingJar.toURI().toURL() }, null);
+
+        try {
+            assertNotNull(loader.getResource("org/a/A.class"));
+            assertNotNull(loader.getResource("org/b/B.class"));
+            assertNotNull(loader.getResource("dir.properties"));
+        } finally {
+            loader.close();
+        }
+    }
+
+    private File jar(String name, String... entries) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        JarOutputStream jar = new JarOutputStream(new FileOutputStream(file));
+        try {
+            for (String entry: entries) {
+                jar.putNextEntry(new JarEntry(entry));
+                jar.write(entry.getBytes("UTF-8"));
+                jar.closeEntry();
+            }
+        } finally {
+            jar.close();
+        }
+        return file;
+    }
+}
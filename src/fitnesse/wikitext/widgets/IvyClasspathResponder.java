@@ -0,0 +1,126 @@
+package fitnesse.wikitext.widgets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import fitnesse.FitNesseContext;
+import fitnesse.Responder;
+import fitnesse.http.Request;
+import fitnesse.http.Response;
+import fitnesse.http.SimpleResponse;
+
+/**
+ * Pages of the plugin. Register it in <tt>plugins.properties</tt>:
+ * <pre>
+ *  Responders = ivyClasspath:fitnesse.wikitext.widgets.IvyClasspathResponder
+ * </pre>
+ *
+ * <p><tt>http://localhost:8080/?ivyClasspath</tt> shows the {@link IvyClasspathMetrics}.
+ * Add <tt>&amp;format=text</tt> for plain text, one <tt>name value</tt> pair per line.
+ *
+ * <p><tt>?ivyClasspath&amp;classpath=<i>key</i></tt> is polled by pages that are rendered while their
+ * classpath is resolved in the background (see {@link IvyClasspathSymbolType#ASYNC_PROPERTY}).
+ * It answers with the list items of the classpath once it is resolved, and with status 202 (accepted)
+ * as long as it is being resolved.
+ */
+public class IvyClasspathResponder implements Responder {
+
+    static final String CLASSPATH_INPUT = "classpath";
+
+    @Override
+    public Response makeResponse(FitNesseContext context, Request request) throws Exception {
+        SimpleResponse response = new SimpleResponse();
+        IvyClasspathSymbolType symbolType = IvyClasspathSymbolType.current();
+        if (symbolType == null) {
+            response.setStatus(404);
+            response.setContentType(Response.Format.TEXT);
+            response.setContent("The Ivy classpath plugin is not loaded");
+        } else if (request.hasInput(CLASSPATH_INPUT)) {
+            String cacheKey = (String) request.getInput(CLASSPATH_INPUT);
+            String html = symbolType.renderResolved(cacheKey);
+            if (html != null) {
+                response.setContent(html);
+            } else if (symbolType.isResolving(cacheKey)) {
+                response.setStatus(202);
+            } else {
+                response.setStatus(404);
+            }
+            response.setMaxAge(0);
+        } else if ("text".equals(request.getInput("format"))) {
+            response.setContentType(Response.Format.TEXT);
+            response.setContent(text(symbolType.getMetrics()));
+        } else {
+            response.setContent(html(symbolType.getMetrics()));
+        }
+        return response;
+    }
+
+    private static Map<String, Object> summary(IvyClasspathMetrics metrics) {
+        Map<String, Object> summary = new LinkedHashMap<String, Object>();
+        summary.put("cache.hits", metrics.getCacheHits());
+        summary.put("cache.hits.stale", metrics.getStaleCacheHits());
+        summary.put("cache.misses", metrics.getCacheMisses());
+        summary.put("cache.evictions", metrics.getCacheEvictions());
+        summary.put("cache.size", metrics.getCacheSize());
+        summary.put("resolves", metrics.getResolves());
+        summary.put("resolve.failures", metrics.getResolveFailures());
+        summary.put("resolve.incremental", metrics.getIncrementalResolves());
+        summary.put("resolve.time.p50.ms", metrics.getResolveTimeP50());
+        summary.put("resolve.time.p99.ms", metrics.getResolveTimeP99());
+        summary.put("classpath.artifacts.p50", metrics.getArtifactsPerClasspathP50());
+        summary.put("classpath.artifacts.p99", metrics.getArtifactsPerClasspathP99());
+        summary.put("download.bytes", metrics.getBytesDownloaded());
+        summary.put("time.settings.ms", metrics.getSettingsTime());
+        summary.put("time.resolve.ms", metrics.getIvyResolveTime());
+        summary.put("time.download.ms", metrics.getDownloadTime());
+        return summary;
+    }
+
+    private static String text(IvyClasspathMetrics metrics) {
+        StringBuilder text = new StringBuilder(1024);
+        for (Map.Entry<String, Object> entry: summary(metrics).entrySet()) {
+            text.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Long> entry: resolvesPerKey(metrics)) {
+            text.append("resolves.key ").append(entry.getValue()).append(' ').append(entry.getKey()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static String html(IvyClasspathMetrics metrics) {
+        StringBuilder html = new StringBuilder(4096);
+        html.append("<!DOCTYPE html>\n<html>\n<head>\n<title>Ivy classpath statistics</title>\n")
+            .append("<link rel='stylesheet' type='text/css' href='/files/fitnesse/css/fitnesse.css'/>\n")
+            .append("</head>\n<body>\n<h1>Ivy classpath statistics</h1>\n<table>\n");
+        for (Map.Entry<String, Object> entry: summary(metrics).entrySet()) {
+            html.append("<tr><td>").append(entry.getKey()).append("</td><td>").append(entry.getValue()).append("</td></tr>\n");
+        }
+        html.append("</table>\n<h2>Resolves per classpath</h2>\n<table>\n");
+        for (Map.Entry<String, Long> entry: resolvesPerKey(metrics)) {
+            html.append("<tr><td>").append(entry.getValue()).append("</td><td>").append(escape(entry.getKey())).append("</td></tr>\n");
+        }
+        return html.append("</table>\n</body>\n</html>\n").toString();
+    }
+
+    /**
+     * @return the resolve counts, the most resolved classpath first.
+     */
+    private static List<Map.Entry<String, Long>> resolvesPerKey(IvyClasspathMetrics metrics) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(metrics.getResolvesPerKey().entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> e1, Map.Entry<String, Long> e2) {
+                return e2.getValue().compareTo(e1.getValue());
+            }
+        });
+        return entries;
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+}
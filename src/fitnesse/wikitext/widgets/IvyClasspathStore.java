@@ -0,0 +1,243 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.ivy.util.MessageLogger;
+
+/**
+ * Persistent classpath cache, so resolved classpaths survive a FitNesse restart.
+ *
+ * <p>The store is a line-oriented index file. For each cache key it holds the fingerprints
+ * of the input files (ivy/pom file, settings file and the files they include) and the resolved artifacts:
+ * <pre>
+ * key      &lt;cache key&gt;
+ * input    &lt;length&gt; &lt;last modified&gt; &lt;sha1&gt; &lt;path&gt;
+ * artifact &lt;path&gt;
+ * </pre>
+ * (fields are separated by tabs). The file is read lazily, on the first lookup.
+ * An entry is only served if its input files did not change and all artifacts are still present.
+ *
+ * <p>The file is shared by all FitNesse servers using the same Ivy cache. The keys hold full paths (see
+ * {@link IvyClasspathSymbolType#createStoreKey}), and an entry is added by merging it with the entries on disk,
+ * while holding a lock on <tt>&lt;store&gt;.lock</tt>, so servers don't overwrite each other's entries.
+ *
+ * <p>The location defaults to <tt>fitnesse-ivy-classpath.idx</tt> in the Ivy cache directory and can be
+ * changed with the system property <tt>ivy.classpath.store</tt>. An empty value disables the store.
+ */
+class IvyClasspathStore {
+
+    static final String STORE_PROPERTY = "ivy.classpath.store";
+    private static final String HEADER = "# fitnesse-ivy-classpath store 1";
+    private static final String KEY = "key";
+    private static final String INPUT = "input";
+    private static final String ARTIFACT = "artifact";
+
+    private static final MessageLogger LOGGER = new IvyClasspathMessageLogger();
+
+    private final File file;
+    private Map<String, IvyClasspathSymbolType.CacheElement> entries;
+
+    IvyClasspathStore(File file) {
+        this.file = file;
+    }
+
+    static IvyClasspathStore fromSystemProperties() {
+        String location = System.getProperty(STORE_PROPERTY);
+        if (location == null) {
+            return new IvyClasspathStore(new File(ivyCacheDir(), "fitnesse-ivy-classpath.idx"));
+        }
+        return new IvyClasspathStore("".equals(location) ? null : new File(location));
+    }
+
+    /**
+     * @return the Ivy cache directory, as configured by the system property <tt>ivy.cache.dir</tt>.
+     */
+    static File ivyCacheDir() {
+        return new File(System.getProperty("ivy.cache.dir",
+                System.getProperty("user.home") + File.separator + ".ivy2" + File.separator + "cache"));
+    }
+
+    synchronized IvyClasspathSymbolType.CacheElement get(String cacheKey) {
+        if (file == null) {
+            return null;
+        }
+        IvyClasspathSymbolType.CacheElement element = entries().get(cacheKey);
+        if (element == null) {
+            return null;
+        }
+        if (element.modified() || !artifactsExist(element)) {
+            entries.remove(cacheKey);
+            return null;
+        }
+        return element;
+    }
+
+    synchronized void put(String cacheKey, IvyClasspathSymbolType.CacheElement element) {
+        if (file == null) {
+            return;
+        }
+        entries().put(cacheKey, element);
+        try {
+            merge(cacheKey, element);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to write classpath store " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Add an entry to the entries on disk, which may have been written by another FitNesse server.
+     */
+    private void merge(String cacheKey, IvyClasspathSymbolType.CacheElement element) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Can not create directory " + parent);
+        }
+        // A file lock is held by the JVM, so threads of this JVM (other store instances) are kept out separately
+        synchronized (IvyClasspathStore.class) {
+            RandomAccessFile lockFile = new RandomAccessFile(new File(file.getPath() + ".lock"), "rw");
+            try {
+                FileLock lock = lockFile.getChannel().lock();
+                try {
+                    Map<String, IvyClasspathSymbolType.CacheElement> onDisk = new LinkedHashMap<String, IvyClasspathSymbolType.CacheElement>();
+                    if (file.isFile()) {
+                        load(onDisk);
+                    }
+                    onDisk.put(cacheKey, element);
+                    save(onDisk);
+                    for (Map.Entry<String, IvyClasspathSymbolType.CacheElement> entry: onDisk.entrySet()) {
+                        if (!entries.containsKey(entry.getKey())) {
+                            entries.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockFile.close();
+            }
+        }
+    }
+
+    private Map<String, IvyClasspathSymbolType.CacheElement> entries() {
+        if (entries == null) {
+            entries = new LinkedHashMap<String, IvyClasspathSymbolType.CacheElement>();
+            if (file.isFile()) {
+                try {
+                    load(entries);
+                } catch (IOException e) {
+                    LOGGER.warn("Unable to read classpath store " + file + ": " + e.getMessage());
+                    entries.clear();
+                }
+            }
+        }
+        return entries;
+    }
+
+    private void load(Map<String, IvyClasspathSymbolType.CacheElement> entries) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            if (!HEADER.equals(reader.readLine())) {
+                return;
+            }
+            String cacheKey = null;
+            List<IvyClasspathFingerprint> inputs = null;
+            List<File> artifacts = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 2);
+                if (fields.length < 2) {
+                    continue;
+                }
+                if (KEY.equals(fields[0])) {
+                    addLoaded(entries, cacheKey, inputs, artifacts);
+                    cacheKey = fields[1];
+                    inputs = new ArrayList<IvyClasspathFingerprint>(2);
+                    artifacts = new ArrayList<File>();
+                } else if (cacheKey != null && INPUT.equals(fields[0])) {
+                    IvyClasspathFingerprint input = IvyClasspathFingerprint.parse(fields[1]);
+                    if (input == null) {
+                        throw new IOException("Corrupt classpath store, invalid line: " + line);
+                    }
+                    inputs.add(input);
+                } else if (cacheKey != null && ARTIFACT.equals(fields[0])) {
+                    artifacts.add(new File(fields[1]));
+                }
+            }
+            addLoaded(entries, cacheKey, inputs, artifacts);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void addLoaded(Map<String, IvyClasspathSymbolType.CacheElement> entries, String cacheKey,
+                                  List<IvyClasspathFingerprint> inputs, List<File> artifacts) {
+        if (cacheKey == null || inputs.isEmpty()) {
+            return;
+        }
+        // Entries for files that no longer exist (e.g. temporary workspaces) are of no use
+        for (IvyClasspathFingerprint input: inputs) {
+            if (!input.getFile().isFile()) {
+                return;
+            }
+        }
+        entries.put(cacheKey, new IvyClasspathSymbolType.CacheElement(Collections.unmodifiableList(inputs),
+                artifacts));
+    }
+
+    private void save(Map<String, IvyClasspathSymbolType.CacheElement> entries) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (Map.Entry<String, IvyClasspathSymbolType.CacheElement> entry: entries.entrySet()) {
+                writer.write(KEY + "\t" + entry.getKey() + "\n");
+                for (IvyClasspathFingerprint input: entry.getValue().inputs) {
+                    writer.write(INPUT + "\t" + input.format() + "\n");
+                }
+                for (File artifact: entry.getValue().dependencies) {
+                    writer.write(ARTIFACT + "\t" + artifact.getAbsolutePath() + "\n");
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        replace(file, tmp);
+    }
+
+    /**
+     * Replace a file in one go, so other readers never see a half written file.
+     */
+    static void replace(File file, File tmp) throws IOException {
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Can not rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+    private static boolean artifactsExist(IvyClasspathSymbolType.CacheElement element) {
+        for (File artifact: element.dependencies) {
+            if (!artifact.exists()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
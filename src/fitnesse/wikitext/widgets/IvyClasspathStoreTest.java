@@ -0,0 +1,125 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class IvyClasspathStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File storeFile;
+    private File ivyFile;
+    private File settingsFile;
+    private List<File> artifacts;
+
+    @Before
+    public void setUp() throws IOException {
+        storeFile = new File(folder.getRoot(), "cache/store.idx");
+        ivyFile = write("ivy.xml", "<ivy-module/>");
+        settingsFile = write("ivysettings.xml", "<ivysettings/>");
+        artifacts = Arrays.asList(write("a.jar", "a"), write("b.jar", "b"));
+    }
+
+    @Test
+    public void storesClasspathAcrossInstances() throws IOException {
+        new IvyClasspathStore(storeFile).put("key", element(ivyFile, settingsFile));
+
+        IvyClasspathSymbolType.CacheElement element = new IvyClasspathStore(storeFile).get("key");
+
+        assertNotNull(element);
+        assertEquals(artifacts, element.dependencies);
+        assertEquals(2, element.inputs.size());
+        assertEquals(ivyFile.getAbsoluteFile(), element.inputs.get(0).getFile());
+        assertEquals(settingsFile.getAbsoluteFile(), element.inputs.get(1).getFile());
+    }
+
+    @Test
+    public void unknownKeyIsNotFound() throws IOException {
+        new IvyClasspathStore(storeFile).put("key", element(ivyFile));
+
+        assertNull(new IvyClasspathStore(storeFile).get("other key"));
+    }
+
+    @Test
+    public void entryIsInvalidatedWhenIvyFileChanges() throws IOException {
+        new IvyClasspathStore(storeFile).put("key", element(ivyFile, settingsFile));
+
+        write("ivy.xml", "<ivy-module version='2.0'/>");
+
+        assertNull(new IvyClasspathStore(storeFile).get("key"));
+    }
+
+    @Test
+    public void entryIsInvalidatedWhenArtifactVanishes() throws IOException {
+        new IvyClasspathStore(storeFile).put("key", element(ivyFile, settingsFile));
+
+        assertTrue(artifacts.get(1).delete());
+
+        assertNull(new IvyClasspathStore(storeFile).get("key"));
+    }
+
+    @Test
+    public void touchedButUnchangedFileIsStillValid() throws IOException {
+        new IvyClasspathStore(storeFile).put("key", element(ivyFile, settingsFile));
+
+        assertTrue(settingsFile.setLastModified(settingsFile.lastModified() - 60000));
+
+        assertNotNull(new IvyClasspathStore(storeFile).get("key"));
+    }
+
+    @Test
+    public void keepsEntriesOfOtherServers() throws IOException {
+        IvyClasspathStore first = new IvyClasspathStore(storeFile);
+        IvyClasspathStore second = new IvyClasspathStore(storeFile);
+        assertNull(first.get("first"));
+        assertNull(second.get("second"));
+
+        first.put("first", element(ivyFile));
+        second.put("second", element(settingsFile));
+
+        IvyClasspathStore afterRestart = new IvyClasspathStore(storeFile);
+        assertNotNull(afterRestart.get("first"));
+        assertNotNull(afterRestart.get("second"));
+        assertNotNull("entries on disk are picked up", second.get("first"));
+    }
+
+    @Test
+    public void disabledStoreDoesNothing() throws IOException {
+        IvyClasspathStore store = new IvyClasspathStore(null);
+        store.put("key", element(ivyFile, settingsFile));
+
+        assertNull(store.get("key"));
+        assertFalse(storeFile.exists());
+    }
+
+    private IvyClasspathSymbolType.CacheElement element(File... inputFiles) throws IOException {
+        List<IvyClasspathFingerprint> inputs = new ArrayList<IvyClasspathFingerprint>();
+        for (File inputFile: inputFiles) {
+            inputs.add(IvyClasspathFingerprint.of(inputFile));
+        }
+        return new IvyClasspathSymbolType.CacheElement(inputs, artifacts);
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
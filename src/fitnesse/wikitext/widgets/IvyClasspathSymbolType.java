@@ -2,45 +2,160 @@ package fitnesse.wikitext.widgets;
 
 import fitnesse.wikitext.parser.*;
 import org.apache.ivy.Ivy;
+import org.apache.ivy.core.module.descriptor.DependencyDescriptor;
 import org.apache.ivy.core.module.descriptor.ModuleDescriptor;
 import org.apache.ivy.core.report.ArtifactDownloadReport;
 import org.apache.ivy.core.report.ResolveReport;
 import org.apache.ivy.core.resolve.ResolveOptions;
-import org.apache.ivy.core.settings.IvySettings;
-import org.apache.ivy.plugins.parser.m2.PomModuleDescriptorParser;
+import org.apache.ivy.plugins.parser.ModuleDescriptorParserRegistry;
+import org.apache.ivy.util.MessageLogger;
 import util.Maybe;
+import util.StringUtil;
 
 import java.io.File;
-import java.lang.ref.SoftReference;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 /**
  * <p>This symbol type adds Ivy support to FitNesse.
  *
  * <p>Usage:
  * <pre>
- *  !resolve [-pom] [-s your-ivysettings.xml] [-c config] [ivy.xml|pom.xml]
+ *  !resolve [-pom] [-pathing-jar] [-s your-ivysettings.xml] [-c config] [-lock ivy.lock] [ivy.xml|pom.xml ...]
  * </pre>
  *
  * <p><tt>-s</tt> defines the Ivy settings file to use. If not defined the Ivy defaults will be
  * used.
  * <p><tt>-c</tt> defines the configurations to load from the ivy file. The configurations can be separated by a comma, but should not contain spaces
  * <p><tt>-pom</tt> makes Ivy use pom file resolution. You should define a pom file as argument.
+ * <p><tt>-lock</tt> defines a lock file. The resolved classpath is written to the lock file and
+ * read from it, without Ivy, until the ivy/pom file changes.
+ * <p><tt>-pathing-jar</tt> hands test systems a single jar, whose manifest lists the classpath, instead of
+ * the classpath itself. This keeps the command line of the test system short.
  * <p>The Ivy.xml file can also be defined. If not defined, <tt>ivy.xml</tt> is assumed.
+ * More than one file can be listed. Those are resolved in parallel (<tt>ivy.classpath.threads</tt> threads,
+ * default 4) and the classpaths are combined in the order the files are listed.
  */
 public class IvyClasspathSymbolType extends SymbolType implements Rule, Translation, PathsProvider {
 
     // Properties put on the "current" symbol
     static final String IS_POM_XML = "IS_POM_XML";
+    static final String PATHING_JAR = "PATHING_JAR";
+    // Put on option symbols that are part of the preceding option value
+    private static final String CONTINUATION = "CONTINUATION";
     private static final String PARSE_ERROR = "PARSE_ERROR";
+    private static final String REFRESH_FAILED = "WARN:Unable to refresh the classpath, showing the last resolved one: ";
 
-    private final Map<String, SoftReference<CacheElement>> cache = new ConcurrentHashMap<String, SoftReference<CacheElement>>();
+    static final String THREADS_PROPERTY = "ivy.classpath.threads";
+    static final String ASYNC_PROPERTY = "ivy.classpath.async";
+    static final String SUMMARY_PROPERTY = "ivy.classpath.summary";
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_SUMMARY_THRESHOLD = 100;
+    private static final int MAX_GRAPHS = 64;
+    // How long placeholders can pick up the problems of a failed background resolve
+    private static final long FAILURE_MILLIS = 60000L;
+    // Number of directories named in a summary
+    private static final int SUMMARY_DIRECTORIES = 5;
+
+    // Splits artifact file names like "commons-lang-2.6.jar" in name and version
+    private static final Pattern VERSIONED_ARTIFACT = Pattern.compile("(.+?)-\\d.*");
+
+    private final IvyClasspathCache cache;
+
+    private final IvyClasspathMetrics metrics;
+
+    // Classpaths resolved by earlier FitNesse runs
+    private final IvyClasspathStore store;
+
+    // Configured Ivy instances, reused between resolves
+    private final IvyClasspathEngines engines = new IvyClasspathEngines();
+
+    // Parsed POMs, shared by the -pom directives of all pages
+    private final IvyClasspathDescriptors descriptors = new IvyClasspathDescriptors();
+
+    // Resolutions in progress, so concurrent requests for the same key wait for one resolve
+    private final ConcurrentMap<String, FutureTask<CacheElement>> inFlight = new ConcurrentHashMap<String, FutureTask<CacheElement>>();
+
+    // Outcome of the resolution per parsed !resolve symbol, so providePaths() and toTarget() resolve only once.
+    // Symbols are compared by identity and are forgotten once the parsed page is garbage collected.
+    private final Map<Symbol, Resolution> resolutions = Collections.synchronizedMap(new WeakHashMap<Symbol, Resolution>());
+
+    // Resolves the dependency files of a !resolve directive with more than one file
+    private final ExecutorService resolvers = newResolverPool("ivy-classpath-resolver-", intProperty(THREADS_PROPERTY, DEFAULT_THREADS));
+
+    // Downloads artifacts once the metadata is resolved
+    private final IvyClasspathDownloads downloads = new IvyClasspathDownloads(
+            newResolverPool("ivy-classpath-download-", intProperty(IvyClasspathDownloads.THREADS_PROPERTY, IvyClasspathDownloads.DEFAULT_THREADS)),
+            intProperty(IvyClasspathDownloads.RETRIES_PROPERTY, IvyClasspathDownloads.DEFAULT_RETRIES));
+
+    // Resolves classpaths for pages that are rendered before their classpath is known
+    private final ExecutorService renderers = newResolverPool("ivy-classpath-render-", intProperty(THREADS_PROPERTY, DEFAULT_THREADS));
+
+    // Refreshes stale classpaths that are served in the meantime
+    private final ExecutorService refreshers = newResolverPool("ivy-classpath-refresh-", intProperty(THREADS_PROPERTY, DEFAULT_THREADS));
+
+    // Stale classpaths being refreshed, by cache key
+    private final ConcurrentMap<String, CacheElement> refreshing = new ConcurrentHashMap<String, CacheElement>();
+
+    // Classpaths being resolved for rendering, by cache key. Once resolved they are in the cache.
+    private final ConcurrentMap<String, Future<CacheElement>> background = new ConcurrentHashMap<String, Future<CacheElement>>();
+
+    // Background resolves that failed, by cache key, until they are rendered or expire
+    private final ConcurrentMap<String, Failure> failures = new ConcurrentHashMap<String, Failure>();
+
+    private final AtomicInteger placeholders = new AtomicInteger();
+
+    private volatile boolean async;
+
+    // Resolves classpaths in a daemon shared with other FitNesse servers, null to resolve in-process
+    private volatile IvyClasspathDaemonClient daemon;
+
+    // Writes jar indexes for the classpaths handed to test systems, null if disabled
+    private volatile IvyClasspathIndex index;
+
+    // Writes the pathing jars for -pathing-jar
+    private volatile IvyClasspathPathingJar pathingJars = IvyClasspathPathingJar.fromSystemProperties();
+
+    // Classpaths with more artifacts are rendered as a summary
+    private volatile int summaryThreshold = intProperty(SUMMARY_PROPERTY, DEFAULT_SUMMARY_THRESHOLD);
+
+    private final MessageLogger logger = new IvyClasspathMessageLogger();
+
+    // Configurations asked for per ivy/pom file (the key of its graph), to be resolved together
+    private final ConcurrentMap<String, Set<String>> expectedConfigurations = new ConcurrentHashMap<String, Set<String>>();
+
+    // Dependency graphs of the last resolves, so a changed descriptor can be resolved incrementally
+    private final Map<String, IvyClasspathGraph> graphs = Collections.synchronizedMap(
+            new LinkedHashMap<String, IvyClasspathGraph>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, IvyClasspathGraph> eldest) {
+                    return size() > MAX_GRAPHS;
+                }
+            });
+
+    // The instance loaded by FitNesse, used by the responder
+    private static volatile IvyClasspathSymbolType current;
 
     // OptionType is used to identify child symbols
     enum OptionType {
 		DEPENDENCY_FILE("ivy.xml"),
 		IVY_SETTINGS_XML(null),
+		LOCK_FILE(null),
 		CONFIGURATION("*");
 
         private final String defaultValue;
@@ -48,18 +163,52 @@ public class IvyClasspathSymbolType extends SymbolType implements Rule, Translat
         private OptionType(final String defaultValue) {
             this.defaultValue = defaultValue;
         }
-        public Maybe<Symbol> fromSymbol(final Symbol symbol) {
+
+        /**
+         * @return the translated values for this option, or the default value if the option is not defined.
+         * Adjacent child symbols (e.g. "default", "," and "test") make up one value.
+         */
+        public List<String> values(final Translator translator, final Symbol symbol) {
+            List<String> values = new ArrayList<String>(1);
             for (Symbol child : symbol.getChildren()) {
                 if (child.hasProperty(this.name())) {
-                    return new Maybe<Symbol>(child);
+                    String value = translator.translate(child);
+                    if (child.hasProperty(CONTINUATION) && !values.isEmpty()) {
+                        values.set(values.size() - 1, values.get(values.size() - 1) + value);
+                    } else {
+                        values.add(value);
+                    }
                 }
             }
-            return defaultValue != null ? new Maybe<Symbol>(new Symbol(SymbolType.Text, defaultValue)) : Symbol.nothing;
+            if (values.isEmpty() && defaultValue != null) {
+                values.add(defaultValue);
+            }
+            return values;
+        }
+
+        /**
+         * @return the first value for this option, the default value or null.
+         */
+        public String value(final Translator translator, final Symbol symbol) {
+            List<String> values = values(translator, symbol);
+            return values.isEmpty() ? null : values.get(0);
         }
 	};
 
     public IvyClasspathSymbolType() {
+        this(IvyClasspathCache.fromSystemProperties(), IvyClasspathStore.fromSystemProperties());
+        setAsync(Boolean.getBoolean(ASYNC_PROPERTY));
+        setIndex(IvyClasspathIndex.fromSystemProperties());
+        setDaemon(IvyClasspathDaemonClient.fromSystemProperties());
+        register();
+        IvyClasspathWarmup.startFromSystemProperties(this);
+    }
+
+    IvyClasspathSymbolType(IvyClasspathCache cache, IvyClasspathStore store) {
         super("IvyClasspathSymbolType");
+        this.cache = cache;
+        this.store = store;
+        this.metrics = new IvyClasspathMetrics(cache);
 
         wikiMatcher(new Matcher().startLineOrCell().string("!resolve"));
 
@@ -69,84 +218,219 @@ public class IvyClasspathSymbolType extends SymbolType implements Rule, Translat
 
 	@Override
 	public Collection<String> providePaths(Translator translator, Symbol symbol) {
-		List<File> classpath;
 		try {
-			classpath = getClasspathElements(translator, symbol);
+			CacheElement element = getMemoizedCacheElement(translator, symbol);
+			IvyClasspathIndex index = this.index;
+			List<String> paths = index == null ? element.dependencies.getPaths() : element.getIndexedPaths(index, logger);
+			return symbol.hasProperty(PATHING_JAR) ? element.getPathingJar(pathingJars, paths, logger) : paths;
 		} catch (IvyClasspathException e) {
 			e.printStackTrace();
 			return Collections.emptyList();
 		}
-		List<String> paths = new ArrayList<String>(classpath.size());
-		for (File cp: classpath) {
-			paths.add(cp.getAbsolutePath());
-		}
-		return paths;
 	}
 
 	@Override
 	public String toTarget(Translator translator, Symbol symbol) {
-        StringBuffer buf = new StringBuffer(256);
-        Maybe<Symbol> dependencyFile = OptionType.DEPENDENCY_FILE.fromSymbol(symbol);
-        Maybe<Symbol> ivySettingsXml = OptionType.IVY_SETTINGS_XML.fromSymbol(symbol);
-        Maybe<Symbol> configuration = OptionType.CONFIGURATION.fromSymbol(symbol);
+        StringBuilder buf = new StringBuilder(256);
+        List<String> dependencyFiles = OptionType.DEPENDENCY_FILE.values(translator, symbol);
+        String ivySettingsXml = OptionType.IVY_SETTINGS_XML.value(translator, symbol);
+        String configuration = OptionType.CONFIGURATION.value(translator, symbol);
+        String lockFile = OptionType.LOCK_FILE.value(translator, symbol);
 
-        buf.append("<p class='meta'>Classpath from \"")
-        	.append(translator.translate(dependencyFile.getValue()))
-        	.append("\"");
+        buf.append("<p class='meta'>Classpath from ");
+        for (int i = 0; i < dependencyFiles.size(); i++) {
+            buf.append(i > 0 ? ", \"" : "\"")
+            	.append(dependencyFiles.get(i))
+            	.append("\"");
+        }
 
-        if (!ivySettingsXml.isNothing()) {
+        if (ivySettingsXml != null) {
             buf.append(", with settings file \"")
-        		.append(translator.translate(ivySettingsXml.getValue()))
+        		.append(ivySettingsXml)
         		.append("\"");
         }
 
         buf.append(" and configuration \"")
-    		.append(translator.translate(configuration.getValue()))
-    		.append("\"")
-            .append(":</p><ul class='meta'>");
+    		.append(configuration)
+    		.append("\"");
+
+        if (lockFile != null) {
+            buf.append(", locked in \"")
+        		.append(lockFile)
+        		.append("\"");
+        }
+
+        buf.append(":</p>");
 
         if (symbol.hasProperty(PARSE_ERROR)) {
- 			buf.append("<li class='error'>")
+ 			buf.append("<ul class='meta'><li class='error'>")
 				.append(symbol.getProperty(PARSE_ERROR))
-				.append("</li>");
+				.append("</li></ul>");
+        } else if (async && !resolutions.containsKey(symbol) && cache.peek(createCacheKey(translator, symbol)) == null) {
+            appendPlaceholder(buf, resolveInBackground(translator, symbol));
         } else {
+            buf.append("<ul class='meta'>");
 	        try {
-	 			for (File dep: getClasspathElements(translator, symbol)) {
-	 				buf.append("<li>")
-	 					.append(dep.getAbsolutePath())
-	 					.append("</li>");
-	 			}
-	 		} catch (IvyClasspathException e) {
-	 			for (String problem: e.getProblems()) {
-	 				buf.append("<li class='error'>ERROR:")
-	 					.append(problem)
-	 					.append("</li>");
-	 			}
+	            appendClasspath(buf, getMemoizedCacheElement(translator, symbol));
 	 		} catch (Exception e) {
-	 			buf.append("<li>ERROR:")
-					.append(e.getMessage())
-					.append("</li>");
+	 		    appendProblems(buf, e);
 	 		}
+	        buf.append("</ul>");
         }
-        buf.append("</ul>");
         return buf.toString();
 	}
 
+    /**
+     * Append the rendered classpath, or a summary with the full classpath folded away if it is too large.
+     */
+    private void appendClasspath(StringBuilder buf, CacheElement element) {
+        buf.append(element.dependencies.size() <= summaryThreshold ? element.getHtml() : element.getSummary());
+    }
+
+    private static String responderUrl(String cacheKey) {
+        try {
+            return "?ivyClasspath&amp;" + IvyClasspathResponder.CLASSPATH_INPUT + "=" + URLEncoder.encode(cacheKey, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported by this JVM", e);
+        }
+    }
+
+    private static void appendProblems(StringBuilder buf, Throwable t) {
+        if (t instanceof IvyClasspathException) {
+            for (String problem: ((IvyClasspathException) t).getProblems()) {
+                buf.append("<li class='error'>ERROR:")
+                    .append(problem)
+                    .append("</li>");
+            }
+        } else {
+            buf.append("<li>ERROR:")
+                .append(t.getMessage())
+                .append("</li>");
+        }
+    }
+
+    /**
+     * Render an empty list, that is filled in by polling {@link IvyClasspathResponder} until the classpath is resolved.
+     */
+    private void appendPlaceholder(StringBuilder buf, String cacheKey) {
+        String id = "ivy-classpath-" + placeholders.incrementAndGet();
+        String url = responderUrl(cacheKey).replace("&amp;", "&");
+        buf.append("<ul class='meta' id='").append(id).append("'><li class='pending'>Resolving classpath...</li></ul>")
+            .append("<script type='text/javascript'>(function() {")
+            .append("var list = document.getElementById('").append(id).append("');")
+            .append("function poll() {")
+            .append("var request = new XMLHttpRequest();")
+            .append("request.open('GET', '").append(url).append("', true);")
+            .append("request.onreadystatechange = function() {")
+            .append("if (request.readyState != 4) return;")
+            .append("if (request.status == 200) list.innerHTML = request.responseText;")
+            .append("else if (request.status == 202) setTimeout(poll, 1000);")
+            .append("else list.innerHTML = \"<li class='error'>ERROR:Classpath is no longer available, reload the page</li>\";")
+            .append("};")
+            .append("request.send();")
+            .append("}")
+            .append("setTimeout(poll, 500);")
+            .append("})();</script>");
+    }
+
+    /**
+     * Start resolving the classpath of a symbol on a background thread, unless it's being resolved already.
+     * A classpath that failed to resolve before is tried again.
+     * @return the cache key of the classpath
+     */
+    private String resolveInBackground(Translator translator, Symbol symbol) {
+        final List<String> dependencyPaths = OptionType.DEPENDENCY_FILE.values(translator, symbol);
+        final String settingsPath = OptionType.IVY_SETTINGS_XML.value(translator, symbol);
+        final String configs = OptionType.CONFIGURATION.value(translator, symbol);
+        final boolean isPom = symbol.hasProperty(IS_POM_XML);
+        final String lockPath = OptionType.LOCK_FILE.value(translator, symbol);
+        final String cacheKey = createCacheKey(dependencyPaths, settingsPath, configs, isPom, lockPath);
+
+        FutureTask<CacheElement> task = new FutureTask<CacheElement>(new Callable<CacheElement>() {
+            @Override
+            public CacheElement call() throws IvyClasspathException {
+                return getCacheElement(dependencyPaths, settingsPath, configs, isPom, lockPath);
+            }
+        }) {
+            @Override
+            protected void done() {
+                // A resolved classpath is in the cache by now; problems are kept aside for a while
+                try {
+                    get();
+                } catch (ExecutionException e) {
+                    recordFailure(cacheKey, e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                background.remove(cacheKey, this);
+            }
+        };
+        if (background.putIfAbsent(cacheKey, task) == null) {
+            failures.remove(cacheKey);
+            renderers.execute(task);
+        }
+        return cacheKey;
+    }
+
+    private void recordFailure(String cacheKey, Throwable cause) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Failure> failure: failures.entrySet()) {
+            if (failure.getValue().expires < now) {
+                failures.remove(failure.getKey(), failure.getValue());
+            }
+        }
+        failures.put(cacheKey, new Failure(cause, now + FAILURE_MILLIS));
+    }
+
+    /**
+     * @return the list items for a classpath that was resolved in the background, or null if it is not resolved (yet).
+     * The full classpath is rendered, also if it is large.
+     */
+    String renderResolved(String cacheKey) {
+        Future<CacheElement> future = background.get(cacheKey);
+        if (future != null && !future.isDone()) {
+            return null;
+        }
+        Failure failure = failures.get(cacheKey);
+        if (failure != null && failures.remove(cacheKey, failure) && failure.expires >= System.currentTimeMillis()) {
+            StringBuilder buf = new StringBuilder(256);
+            appendProblems(buf, failure.cause);
+            return buf.toString();
+        }
+        CacheElement element = cache.peek(cacheKey);
+        return element != null ? element.getHtml() : null;
+    }
+
+    boolean isResolving(String cacheKey) {
+        return background.containsKey(cacheKey);
+    }
+
 	@Override
 	public Maybe<Symbol> parse(Symbol symbol, Parser parser) {
 
         OptionType nextOption = OptionType.DEPENDENCY_FILE;
+        // Option of the previous symbol, as long as no whitespace is encountered
+        OptionType continuedOption = null;
 
         Symbol body = parser.parseToEnd(SymbolType.Newline);
         for (Symbol option: body.getChildren()) {
             if (option.isType(SymbolType.Whitespace)) {
-            	continue;
+            	continuedOption = null;
+            } else if (continuedOption != null) {
+            	// e.g. the "," and "test" in "-c default,test"
+            	option.putProperty(continuedOption.name(), "");
+            	option.putProperty(CONTINUATION, "");
+            	symbol.add(option);
             } else if ("-s".equals(option.getContent())) {
             	nextOption = OptionType.IVY_SETTINGS_XML;
             } else if ("-c".equals(option.getContent())) {
             	nextOption = OptionType.CONFIGURATION;
+            } else if ("-lock".equals(option.getContent())) {
+            	nextOption = OptionType.LOCK_FILE;
             } else if ("-pom".equals(option.getContent())) {
             	symbol.putProperty(IS_POM_XML, "true");
+            } else if ("-pathing-jar".equals(option.getContent())) {
+            	symbol.putProperty(PATHING_JAR, "true");
             } else {
 //            	if (nextOption.fromSymbol(symbol) != Symbol.nothing) {
 //            		symbol.putProperty(PARSE_ERROR, "Syntax error: Configuration option " + nextOption.name() + " is already defined.");
@@ -154,6 +438,7 @@ public class IvyClasspathSymbolType extends SymbolType implements Rule, Translat
 //            	}
                 option.putProperty(nextOption.name(), "");
             	symbol.add(option);
+            	continuedOption = nextOption;
             	nextOption = OptionType.DEPENDENCY_FILE;
             }
         }
@@ -161,27 +446,408 @@ public class IvyClasspathSymbolType extends SymbolType implements Rule, Translat
         return new Maybe<Symbol>(symbol);
 	}
 
-    @SuppressWarnings("unchecked")
-	List<File> getClasspathElements(Translator translator, Symbol symbol) throws IvyClasspathException {
-        Maybe<Symbol> dependencyFile = OptionType.DEPENDENCY_FILE.fromSymbol(symbol);
-        Maybe<Symbol> ivySettingsXml = OptionType.IVY_SETTINGS_XML.fromSymbol(symbol);
-        Maybe<Symbol> configuration = OptionType.CONFIGURATION.fromSymbol(symbol);
+    IvyClasspathCache getCache() {
+        return cache;
+    }
+
+    IvyClasspathDescriptors getDescriptors() {
+        return descriptors;
+    }
+
+    /**
+     * Forget the dependency graphs of earlier resolves, so the next resolve of each file is a full one.
+     */
+    void forgetGraphs() {
+        graphs.clear();
+    }
+
+    IvyClasspathMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * In asynchronous mode, a page is rendered right away, also if the classpath has not been resolved yet.
+     * The classpath is then resolved in the background and filled in by the browser when it's ready.
+     */
+    void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * Have an index jar put in front of the classpaths handed to test systems, see {@link IvyClasspathIndex}.
+     * @param index the index, or null to hand out the classpaths as they are.
+     */
+    void setIndex(IvyClasspathIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Have classpaths resolved by an {@link IvyClasspathDaemon}, falling back to resolving in-process if it can't
+     * be reached.
+     * @param daemon the daemon, or null to always resolve in-process.
+     */
+    void setDaemon(IvyClasspathDaemonClient daemon) {
+        this.daemon = daemon;
+    }
+
+    void setPathingJars(IvyClasspathPathingJar pathingJars) {
+        this.pathingJars = pathingJars;
+    }
+
+    /**
+     * Classpaths with more artifacts than the threshold are rendered as a summary: the number of artifacts
+     * and the directories they are in.
+     */
+    void setSummaryThreshold(int summaryThreshold) {
+        this.summaryThreshold = summaryThreshold;
+    }
+
+    /**
+     * Make this the instance served by {@link IvyClasspathResponder} and JMX.
+     */
+    void register() {
+        current = this;
+        metrics.register();
+    }
+
+    /**
+     * @return the registered instance, or null if the plugin is not loaded.
+     */
+    static IvyClasspathSymbolType current() {
+        return current;
+    }
+
+    /**
+     * Get the classpath for a symbol, resolving it at most once for the lifetime of the symbol.
+     * Failures are remembered as well.
+     */
+    private CacheElement getMemoizedCacheElement(Translator translator, Symbol symbol) throws IvyClasspathException {
+        Resolution resolution = resolutions.get(symbol);
+        if (resolution == null) {
+            try {
+                resolution = new Resolution(getCacheElement(translator, symbol), null);
+            } catch (IvyClasspathException e) {
+                resolution = new Resolution(null, e);
+            }
+            resolutions.put(symbol, resolution);
+        }
+        return resolution.getElement();
+    }
+
+    List<File> getMemoizedClasspathElements(Translator translator, Symbol symbol) throws IvyClasspathException {
+        return getMemoizedCacheElement(translator, symbol).dependencies;
+    }
+
+    List<File> getClasspathElements(Translator translator, Symbol symbol) throws IvyClasspathException {
+        return getCacheElement(translator, symbol).dependencies;
+    }
+
+    CacheElement getCacheElement(Translator translator, Symbol symbol) throws IvyClasspathException {
+        List<String> dependencyPaths = OptionType.DEPENDENCY_FILE.values(translator, symbol);
+        String settingsPath = OptionType.IVY_SETTINGS_XML.value(translator, symbol);
+        String configs = OptionType.CONFIGURATION.value(translator, symbol);
+        boolean isPom = symbol.hasProperty(IS_POM_XML);
+        String lockPath = OptionType.LOCK_FILE.value(translator, symbol);
+
+        return getCacheElement(dependencyPaths, settingsPath, configs, isPom, lockPath);
+    }
+
+    /**
+     * Get the combined classpath of a number of dependency files. The files are resolved concurrently and
+     * their classpaths are merged in the order the files are listed.
+     */
+    List<File> getClasspathElements(List<String> dependencyPaths, String settingsPath, String configs,
+                                    boolean isPom, String lockPath) throws IvyClasspathException {
+        return getCacheElement(dependencyPaths, settingsPath, configs, isPom, lockPath).dependencies;
+    }
+
+    private CacheElement getCacheElement(final List<String> dependencyPaths, final String settingsPath, final String configs,
+                                         final boolean isPom, final String lockPath) throws IvyClasspathException {
+        if (dependencyPaths.size() == 1) {
+            return getCacheElement(dependencyPaths.get(0), settingsPath, configs, isPom, lockPath);
+        }
+
+        String cacheKey = createCacheKey(dependencyPaths, settingsPath, configs, isPom, lockPath);
+        CacheElement element = cache.get(cacheKey);
+        // A stale combined classpath is merged again; the files themselves are refreshed in the background
+        if (element != null && !element.isStale()) {
+            return element;
+        }
+
+        return resolveOnce(cacheKey, dependencyPaths.toString(), new Callable<CacheElement>() {
+            @Override
+            public CacheElement call() throws IvyClasspathException {
+                // The individual files are stored by themselves, so only the lock file is of interest here
+                IvyClasspathLockFile lock = lockPath != null ? new IvyClasspathLockFile(new File(lockPath)) : null;
+                CacheElement element = lock != null ? lock.read() : null;
+                if (element == null) {
+                    element = resolveAll(dependencyPaths, settingsPath, configs, isPom);
+                    if (lock != null) {
+                        writeLockFile(lock, element, settingsPath);
+                    }
+                }
+                return element;
+            }
+        });
+    }
+
+    List<File> getClasspathElements(String dependencyPath, String settingsPath, String configs, boolean isPom,
+                                    String lockPath) throws IvyClasspathException {
+        return getCacheElement(dependencyPath, settingsPath, configs, isPom, lockPath).dependencies;
+    }
+
+    CacheElement getCacheElement(String dependencyPath, String settingsPath, String configs, boolean isPom,
+                                 String lockPath) throws IvyClasspathException {
+        // Fast path: the key is built from the raw (translated) arguments, so a cache hit
+        // does not need an Ivy instance, nor a parsed settings file.
+        String cacheKey = createCacheKey(dependencyPath, settingsPath, configs, isPom, lockPath);
+        CacheElement element = cache.get(cacheKey);
+        if (element != null && !element.isStale()) {
+            return element;
+        }
+        // A locked classpath is read from the lock file again, that's quick enough
+        if (element != null && lockPath == null) {
+            refreshInBackground(cacheKey, element, dependencyPath, settingsPath, configs, isPom);
+            return element;
+        }
+
+        return resolveOnce(cacheKey, dependencyPath, loader(cacheKey, lockPath, dependencyPath, settingsPath, configs, isPom, false));
+    }
+
+    /**
+     * Serve a stale classpath while it's resolved again on a background thread. If that works out, the
+     * new classpath takes its place in the cache. If not, the stale classpath is kept, with the problems.
+     */
+    private void refreshInBackground(final String cacheKey, final CacheElement stale, final String dependencyPath,
+                                     final String settingsPath, final String configs, final boolean isPom) {
+        if (System.currentTimeMillis() < stale.refreshAfter || refreshing.putIfAbsent(cacheKey, stale) != null) {
+            return;
+        }
+        refreshers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (cache.isExpired(stale)) {
+                        // Dynamic revisions (latest.release and such) are only looked up again by a full resolve
+                        graphs.remove(createCacheKey(dependencyPath, settingsPath, null, isPom, null));
+                    }
+                    resolveOnce(cacheKey, dependencyPath, loader(cacheKey, null, dependencyPath, settingsPath, configs, isPom, true));
+                } catch (IvyClasspathException e) {
+                    cache.replace(cacheKey, stale, stale.withRefreshProblems(e.getProblems(),
+                            System.currentTimeMillis() + cache.getRetryMillis()));
+                } finally {
+                    refreshing.remove(cacheKey, stale);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param refresh whether the classpath is resolved again because it is stale, in which case the store
+     * is skipped.
+     */
+    private Callable<CacheElement> loader(final String cacheKey, final String lockPath, final String dependencyPath,
+                                          final String settingsPath, final String configs, final boolean isPom,
+                                          final boolean refresh) {
+        return new Callable<CacheElement>() {
+            @Override
+            public CacheElement call() throws IvyClasspathException {
+                // A lock file takes the place of the store
+                IvyClasspathLockFile lock = lockPath != null ? new IvyClasspathLockFile(new File(lockPath)) : null;
+                String storeKey = lock == null ? createStoreKey(dependencyPath, settingsPath, configs, isPom) : null;
+                CacheElement element = refresh ? null : lock != null ? lock.read() : store.get(storeKey);
+                if (element == null) {
+                    logger.debug("Cache key is: " + cacheKey);
+                    long start = System.nanoTime();
+                    try {
+                        element = resolve(dependencyPath, settingsPath, configs, isPom);
+                    } catch (IvyClasspathException e) {
+                        metrics.recordFailure(cacheKey, System.nanoTime() - start);
+                        throw e;
+                    }
+                    metrics.recordResolve(cacheKey, System.nanoTime() - start, element.dependencies.size());
+                    if (lock != null) {
+                        writeLockFile(lock, element, settingsPath);
+                    } else {
+                        store.put(storeKey, element);
+                    }
+                }
+                return element;
+            }
+        };
+    }
+
+    /**
+     * Resolve all dependency files, each on its own thread, and merge the outcome.
+     * The first file is resolved on the calling thread. Problems with any of the files are collected.
+     */
+    private CacheElement resolveAll(List<String> dependencyPaths, final String settingsPath, final String configs,
+                                    final boolean isPom) throws IvyClasspathException {
+        List<Future<CacheElement>> futures = new ArrayList<Future<CacheElement>>(dependencyPaths.size() - 1);
+        for (final String dependencyPath: dependencyPaths.subList(1, dependencyPaths.size())) {
+            futures.add(resolvers.submit(new Callable<CacheElement>() {
+                @Override
+                public CacheElement call() throws IvyClasspathException {
+                    return getCacheElement(dependencyPath, settingsPath, configs, isPom, null);
+                }
+            }));
+        }
+
+        List<CacheElement> parts = new ArrayList<CacheElement>(dependencyPaths.size());
+        List<String> problems = new ArrayList<String>();
+        try {
+            parts.add(getCacheElement(dependencyPaths.get(0), settingsPath, configs, isPom, null));
+        } catch (IvyClasspathException e) {
+            problems.addAll(e.getProblems());
+        }
+        for (Future<CacheElement> future: futures) {
+            try {
+                parts.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IvyClasspathException("Interrupted while waiting for dependencies of " + dependencyPaths, e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IvyClasspathException) {
+                    problems.addAll(((IvyClasspathException) e.getCause()).getProblems());
+                } else {
+                    problems.add(String.valueOf(e.getCause()));
+                }
+            }
+        }
+        if (!problems.isEmpty()) {
+            throw new IvyClasspathException(problems);
+        }
+        return merge(dependencyPaths, parts, logger);
+    }
+
+    /**
+     * Merge classpaths, keeping the order of the parts. Artifacts that are on more than one classpath are
+     * added once. Different versions of the same artifact are all kept, but are reported as a warning.
+     */
+    static CacheElement merge(List<String> dependencyPaths, List<CacheElement> parts, MessageLogger logger) {
+        Map<File, IvyClasspathFingerprint> inputs = new LinkedHashMap<File, IvyClasspathFingerprint>();
+        Set<File> dependencies = new LinkedHashSet<File>();
+        // Artifact without version (directory and base name) -> the first version found and its dependency file
+        Map<String, File> versions = new HashMap<String, File>();
+        Map<File, String> origins = new HashMap<File, String>();
+        List<String> messages = new ArrayList<String>();
+        // The merged classpath expires with its oldest part
+        long created = Long.MAX_VALUE;
+
+        for (int i = 0; i < parts.size(); i++) {
+            CacheElement part = parts.get(i);
+            messages.addAll(part.messages);
+            created = Math.min(created, part.created);
+            for (IvyClasspathFingerprint input: part.inputs) {
+                if (!inputs.containsKey(input.getFile())) {
+                    inputs.put(input.getFile(), input);
+                }
+            }
+            for (File dependency: part.dependencies) {
+                if (!dependencies.add(dependency)) {
+                    continue;
+                }
+                origins.put(dependency, dependencyPaths.get(i));
+                String artifact = withoutVersion(dependency);
+                File other = versions.get(artifact);
+                if (other == null) {
+                    versions.put(artifact, dependency);
+                } else {
+                    String conflict = "Version conflict: " + dependency.getName() + " (from " + dependencyPaths.get(i) + ") and " +
+                            other.getName() + " (from " + origins.get(other) + ") are both on the classpath";
+                    logger.warn(conflict);
+                    messages.add("WARN:" + conflict);
+                }
+            }
+        }
+        return new CacheElement(Collections.unmodifiableList(new ArrayList<IvyClasspathFingerprint>(inputs.values())),
+                dependencies, messages.isEmpty() ? Collections.<String>emptyList() : Collections.unmodifiableList(messages),
+                parts.isEmpty() ? System.currentTimeMillis() : created, 0L, 0L);
+    }
+
+    /**
+     * @return the artifact path without the version, e.g. <tt>.../jars/commons-lang</tt> for
+     * <tt>.../jars/commons-lang-2.6.jar</tt>.
+     */
+    private static String withoutVersion(File artifact) {
+        java.util.regex.Matcher versioned = VERSIONED_ARTIFACT.matcher(artifact.getName());
+        String name = versioned.matches() ? versioned.group(1) : artifact.getName();
+        return new File(artifact.getParentFile(), name).getPath();
+    }
+
+    /**
+     * Resolve a classpath, making sure only one thread resolves a specific key at a time.
+     * Other threads asking for the same key wait for the outcome of that resolution.
+     */
+    private CacheElement resolveOnce(final String cacheKey, String description, final Callable<CacheElement> loader)
+            throws IvyClasspathException {
+        FutureTask<CacheElement> task = new FutureTask<CacheElement>(new Callable<CacheElement>() {
+            @Override
+            public CacheElement call() throws Exception {
+                // Another thread may have finished resolving this key just before we got here
+                CacheElement element = cache.peek(cacheKey);
+                if (element == null) {
+                    long start = System.nanoTime();
+                    element = loader.call();
+                    cache.put(cacheKey, element);
+                    cache.recordLoad(System.nanoTime() - start);
+                }
+                return element;
+            }
+        });
+
+        FutureTask<CacheElement> running = inFlight.putIfAbsent(cacheKey, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(cacheKey, task);
+            }
+        }
 
-        Ivy ivy = Ivy.newInstance();
-        initMessage(ivy);
-        File settingsFile = initSettings(ivy, translator, ivySettingsXml);
-        File ivyFile = new File(ivy.getSettings().substitute(translator.translate(dependencyFile.getValue())));
-        String configs = translator.translate(configuration.getValue());
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IvyClasspathException("Interrupted while waiting for dependencies of " + description, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IvyClasspathException) {
+                throw (IvyClasspathException) e.getCause();
+            }
+            throw new IvyClasspathException("Unable to resolve dependencies for file " + description, e.getCause());
+        }
+    }
 
-        String cacheKey = createCacheKey(settingsFile, ivyFile, configs);
-        System.out.println("Cache key is: " + cacheKey);
-        if (cache.containsKey(cacheKey)) {
-            CacheElement element = cache.get(cacheKey).get();
-            if (element != null && !element.modified()) {
-                return element.dependencies;
+    /**
+     * Resolve the dependencies the hard way: have the daemon do it, or get an Ivy engine and let it do its work.
+     */
+    CacheElement resolve(String dependencyPath, String settingsPath, String configs, boolean isPom) throws IvyClasspathException {
+        IvyClasspathDaemonClient daemon = this.daemon;
+        if (daemon != null) {
+            try {
+                return daemon.resolve(dependencyPath, settingsPath, configs, isPom);
+            } catch (IOException e) {
+                logger.warn("Ivy classpath daemon on port " + daemon.getPort() + " not available, resolving "
+                        + dependencyPath + " in-process: " + e.getMessage());
             }
         }
+        long start = System.nanoTime();
+        IvyClasspathEngines.Engine engine = engines.checkout(settingsPath);
+        metrics.recordSettings(System.nanoTime() - start);
+        engine.logger.startCollecting(createCacheKey(dependencyPath, settingsPath, configs, isPom, null));
+        try {
+            return resolve(engine, dependencyPath, settingsPath, configs, isPom);
+        } finally {
+            engine.logger.stopCollecting();
+            engines.checkin(engine);
+        }
+    }
 
+    private CacheElement resolve(IvyClasspathEngines.Engine engine, String dependencyPath, String settingsPath,
+                                 String configs, boolean isPom) throws IvyClasspathException {
+        Ivy ivy = engine.ivy;
+        File ivyFile = new File(ivy.getSettings().substitute(dependencyPath));
 
         if (!ivyFile.exists()) {
             throw new IvyClasspathException("Ivy/pom file not found: " + ivyFile);
@@ -189,91 +855,572 @@ public class IvyClasspathSymbolType extends SymbolType implements Rule, Translat
             throw new IvyClasspathException("Ivy/pom file is not a file: " + ivyFile);
         }
 
+        ModuleDescriptor md = parseDescriptor(engine, settingsPath, ivyFile, isPom);
+        List<IvyClasspathFingerprint> inputs = fingerprintInputs(engine, ivyFile, isPom);
+
+        // Resolve the configurations other pages ask for in the same go, so they can be cached as well
+        String graphKey = createCacheKey(dependencyPath, settingsPath, null, isPom, null);
+        String[] requested = requestedConfigurations(md, configs);
+        String[] confs = requested != null
+                ? batchConfigurations(md, requested, dependencyPath, settingsPath, isPom, expected(graphKey))
+                : configs.split(",");
+        Map<String, List<File>> classpaths = null;
+
+        // Resolve only what changed since the last resolve, if possible
+        IvyClasspathGraph previous = graphs.get(graphKey);
+        List<DependencyDescriptor> changed = previous != null ? previous.changedDependencies(md, confs) : null;
+        if (changed != null) {
+            IvyClasspathGraph graph = previous;
+            if (!changed.isEmpty()) {
+                ModuleDescriptor partial = IvyClasspathGraph.partialDescriptor(md, changed);
+                graph = IvyClasspathGraph.of(partial, resolve(ivy, partial, confs, ivyFile), engine.settingsInputs);
+            }
+            graph = graph != null ? previous.update(md, changed.isEmpty() ? null : graph) : null;
+            if (graph != null) {
+                logger.info("Resolved " + changed.size() + " of " + md.getDependencies().length + " dependencies of " + ivyFile);
+                metrics.recordIncrementalResolve();
+                graphs.put(graphKey, graph);
+                classpaths = new LinkedHashMap<String, List<File>>();
+                for (String conf: confs) {
+                    classpaths.put(conf, graph.getClasspath(conf));
+                }
+            }
+        }
+
+        if (classpaths == null) {
+            ResolveReport report;
+            try {
+                report = resolve(ivy, md, confs, ivyFile);
+            } catch (IvyClasspathException e) {
+                if (requested == null || confs.length == requested.length) {
+                    throw e;
+                }
+                // Don't batch the other configurations again, they are resolved when asked for
+                expected(graphKey).removeAll(Arrays.asList(confs));
+                expected(graphKey).addAll(Arrays.asList(requested));
+                // A configuration that was not asked for should not break this resolve
+                confs = requested;
+                report = resolve(ivy, md, confs, ivyFile);
+            }
+            IvyClasspathGraph graph = IvyClasspathGraph.of(md, report, engine.settingsInputs);
+            if (graph != null) {
+                graphs.put(graphKey, graph);
+            } else {
+                graphs.remove(graphKey);
+            }
+            // Order by the graph if there is one, so later incremental resolves keep the same order
+            classpaths = new LinkedHashMap<String, List<File>>();
+            for (String conf: report.getConfigurations()) {
+                List<File> classpath = new ArrayList<File>();
+                if (graph != null) {
+                    classpath.addAll(graph.getClasspath(conf));
+                } else {
+                    for (ArtifactDownloadReport adr: report.getConfigurationReport(conf).getAllArtifactsReports()) {
+                        classpath.add(adr.getLocalFile());
+                    }
+                }
+                classpaths.put(conf, classpath);
+            }
+        }
+
+        List<String> messages = engine.logger.getCollected();
+        if (requested == null) {
+            return new CacheElement(inputs, union(classpaths, classpaths.keySet()), messages);
+        }
+        cacheConfigurations(dependencyPath, settingsPath, configs, isPom, md, inputs, classpaths, messages);
+        return new CacheElement(inputs, union(classpaths, Arrays.asList(requested)), messages);
+    }
+
+    /**
+     * @return the configuration names in <tt>configs</tt>, or null if it holds patterns, like <tt>*,!sources</tt>.
+     */
+    private static String[] requestedConfigurations(ModuleDescriptor md, String configs) {
+        if ("*".equals(configs.trim())) {
+            return md.getConfigurationsNames();
+        }
+        String[] requested = configs.split(",");
+        for (int i = 0; i < requested.length; i++) {
+            requested[i] = requested[i].trim();
+            if (!requested[i].matches("[\\w.-]+")) {
+                return null;
+            }
+        }
+        return requested;
+    }
+
+    /**
+     * @return the requested configurations, and the configurations of the module that have been asked for before
+     * (or are expected to be, see {@link #expectConfigurations}) and are not cached. The requested ones are
+     * remembered as well.
+     */
+    private String[] batchConfigurations(ModuleDescriptor md, String[] requested, String dependencyPath,
+                                         String settingsPath, boolean isPom, Set<String> expected) {
+        Set<String> confs = new LinkedHashSet<String>(Arrays.asList(requested));
+        Set<String> known = new HashSet<String>(Arrays.asList(md.getConfigurationsNames()));
+        synchronized (expected) {
+            for (String conf: expected) {
+                if (known.contains(conf) && cache.peek(createCacheKey(dependencyPath, settingsPath, conf, isPom, null)) == null) {
+                    confs.add(conf);
+                }
+            }
+            expected.addAll(Arrays.asList(requested));
+        }
+        return confs.toArray(new String[confs.size()]);
+    }
+
+    /**
+     * Remember that a page asks for these configurations, so they are resolved together with the first
+     * configuration of the file that's asked for. Used by the warm-up, which knows all pages up front.
+     */
+    void expectConfigurations(String dependencyPath, String settingsPath, String configs, boolean isPom) {
+        Set<String> expected = expected(createCacheKey(dependencyPath, settingsPath, null, isPom, null));
+        for (String conf: configs.split(",")) {
+            conf = conf.trim();
+            // Patterns like "*" and "!sources" are resolved by themselves
+            if (conf.matches("[\\w.-]+")) {
+                expected.add(conf);
+            }
+        }
+    }
+
+    private Set<String> expected(String graphKey) {
+        Set<String> expected = expectedConfigurations.get(graphKey);
+        if (expected == null) {
+            Set<String> created = Collections.synchronizedSet(new LinkedHashSet<String>());
+            expected = expectedConfigurations.putIfAbsent(graphKey, created);
+            if (expected == null) {
+                expected = created;
+            }
+        }
+        return expected;
+    }
+
+    private static List<File> union(Map<String, List<File>> classpaths, Collection<String> confs) {
+        Set<File> classpath = new LinkedHashSet<File>();
+        for (String conf: confs) {
+            classpath.addAll(classpaths.get(conf));
+        }
+        return new ArrayList<File>(classpath);
+    }
+
+    /**
+     * Put the classpath of each resolved configuration in the cache, and the classpath of all configurations
+     * (<tt>*</tt>, the default) if they were all resolved.
+     */
+    private void cacheConfigurations(String dependencyPath, String settingsPath, String configs, boolean isPom,
+                                     ModuleDescriptor md, List<IvyClasspathFingerprint> inputs,
+                                     Map<String, List<File>> classpaths, List<String> messages) {
+        Map<String, Collection<String>> keys = new LinkedHashMap<String, Collection<String>>();
+        for (String conf: classpaths.keySet()) {
+            keys.put(conf, Collections.singleton(conf));
+        }
+        if (classpaths.keySet().containsAll(Arrays.asList(md.getConfigurationsNames()))) {
+            keys.put("*", Arrays.asList(md.getConfigurationsNames()));
+        }
+        keys.remove(configs);
+        for (Map.Entry<String, Collection<String>> key: keys.entrySet()) {
+            String cacheKey = createCacheKey(dependencyPath, settingsPath, key.getKey(), isPom, null);
+            if (cache.peek(cacheKey) == null) {
+                cache.put(cacheKey, new CacheElement(inputs, union(classpaths, key.getValue()), messages));
+            }
+        }
+    }
+
+    private ModuleDescriptor parseDescriptor(IvyClasspathEngines.Engine engine, String settingsPath, File ivyFile,
+                                             boolean isPom) throws IvyClasspathException {
+        Ivy ivy = engine.ivy;
+        ivy.pushContext();
+        try {
+            if (isPom) {
+                return descriptors.parsePom(ivy.getSettings(), settingsPath != null ? settingsPath : "**",
+                        engine.settingsInputs, ivyFile);
+            }
+            return ModuleDescriptorParserRegistry.getInstance().parseDescriptor(ivy.getSettings(), ivyFile.toURI().toURL(), true);
+        } catch (Exception e) {
+            throw new IvyClasspathException("Unable to resolve dependencies for file " + ivyFile.getAbsolutePath(), e);
+        } finally {
+            ivy.popContext();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private ResolveReport resolve(Ivy ivy, ModuleDescriptor md, String[] confs, File ivyFile) throws IvyClasspathException {
+        // Metadata only, the artifacts are downloaded concurrently afterwards
         ResolveOptions resolveOptions = new ResolveOptions()
-        		.setConfs(configs.split(","))
-                .setValidate(true);
+                .setConfs(confs)
+                .setValidate(true)
+                .setDownload(false);
         ResolveReport report;
-		try {
-			if (symbol.hasProperty(IS_POM_XML)) {
-				ModuleDescriptor md =  PomModuleDescriptorParser.getInstance().parseDescriptor(ivy.getSettings(), ivyFile.toURI().toURL(), true);
-				report = ivy.resolve(md, resolveOptions);
-			} else {
-				report = ivy.resolve(ivyFile.toURI().toURL(), resolveOptions);
-			}
-		} catch (Exception e) {
-			throw new IvyClasspathException("Unable to resolve dependencies for file " + ivyFile.getAbsolutePath(), e);
-		}
+        long start = System.nanoTime();
+        try {
+            report = ivy.resolve(md, resolveOptions);
+        } catch (Exception e) {
+            throw new IvyClasspathException("Unable to resolve dependencies for file " + ivyFile.getAbsolutePath(), e);
+        }
+        if (!report.hasError()) {
+            downloads.download(ivy, report, resolveOptions.getArtifactFilter());
+        }
+
+        metrics.recordIvyResolve(System.nanoTime() - start, report.getDownloadTime(), report.getDownloadSize());
 
         if (report.hasError()) {
             throw new IvyClasspathException(report.getAllProblemMessages());
-        } else {
-        	List<File> dependencies = new ArrayList<File>(report.getAllArtifactsReports().length);
-        	for (ArtifactDownloadReport adr: report.getAllArtifactsReports()) {
-        		dependencies.add(adr.getLocalFile());
-        	}
+        }
+        return report;
+    }
 
-            cache.put(cacheKey, new SoftReference<CacheElement>(new CacheElement(settingsFile, ivyFile, dependencies)));
+    private static List<IvyClasspathFingerprint> fingerprintInputs(IvyClasspathEngines.Engine engine, File ivyFile,
+                                                                   boolean isPom) throws IvyClasspathException {
+        List<IvyClasspathFingerprint> inputs;
+        try {
+            inputs = IvyClasspathFingerprint.ofAll(IvyClasspathInputFiles.forDescriptor(ivyFile, isPom, engine.ivy.getSettings()));
+        } catch (IOException e) {
+            throw new IvyClasspathException("Unable to read file " + ivyFile.getAbsolutePath(), e);
+        }
+        inputs.addAll(engine.settingsInputs);
+        return Collections.unmodifiableList(inputs);
+    }
 
-            return dependencies;
+    /**
+     * Write the lock file, with the artifacts relative to the Ivy cache of the settings.
+     */
+    private void writeLockFile(IvyClasspathLockFile lock, CacheElement element, String settingsPath) {
+        try {
+            IvyClasspathEngines.Engine engine = engines.checkout(settingsPath);
+            try {
+                lock.write(element, engine.ivy.getSettings().getDefaultCache());
+            } finally {
+                engines.checkin(engine);
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to write lock file " + lock.getFile() + ": " + e.getMessage());
+        } catch (IvyClasspathException e) {
+            logger.warn("Unable to write lock file " + lock.getFile() + ": " + e.getMessage());
         }
     }
 
-    private String createCacheKey(File settingsFile, File ivyFile, String configs) {
-        return (ivyFile != null ? ivyFile.getAbsolutePath() : "**") + "#" +
-                (settingsFile != null ? settingsFile.getAbsolutePath() : "**") + "#" +
-                (configs != null ? configs : "**");
+    private static ExecutorService newResolverPool(final String namePrefix, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, namePrefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // No threads are kept around when there's nothing to resolve
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
-    private static void initMessage(Ivy ivy) {
-            ivy.getLoggerEngine().pushLogger(new IvyClasspathMessageLogger());
+    private static int intProperty(String name, int defaultValue) {
+        try {
+            return Math.max(1, Integer.parseInt(System.getProperty(name, String.valueOf(defaultValue)).trim()));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
     }
 
-    private static File initSettings(Ivy ivy, Translator translator, Maybe<Symbol> ivySettingsXml)
-            throws IvyClasspathException {
-        IvySettings settings = ivy.getSettings();
-        settings.addAllVariables(System.getProperties());
-        File settingsFile = null;
-        if (ivySettingsXml.isNothing()) {
-        	try {
-        		ivy.configureDefault();
-			} catch (Exception e) {
-				throw new IvyClasspathException("Unable to set default configuration", e);
-			}
-        } else {
-            settingsFile = new File(translator.translate(ivySettingsXml.getValue()));
-            if (!settingsFile.exists()) {
-                throw new IvyClasspathException("Ivy configuration file not found: " + settingsFile);
-            } else if (settingsFile.isDirectory()) {
-            	throw new IvyClasspathException("Ivy configuration file is not a file: " + settingsFile);
-            }
+    private static String createCacheKey(Translator translator, Symbol symbol) {
+        return createCacheKey(OptionType.DEPENDENCY_FILE.values(translator, symbol),
+                OptionType.IVY_SETTINGS_XML.value(translator, symbol),
+                OptionType.CONFIGURATION.value(translator, symbol),
+                symbol.hasProperty(IS_POM_XML),
+                OptionType.LOCK_FILE.value(translator, symbol));
+    }
+
+    private static String createCacheKey(List<String> dependencyPaths, String settingsPath, String configs,
+                                         boolean isPom, String lockPath) {
+        return createCacheKey(StringUtil.join(dependencyPaths, "+"), settingsPath, configs, isPom, lockPath);
+    }
+
+    private static String createCacheKey(String dependencyPath, String settingsPath, String configs, boolean isPom,
+                                         String lockPath) {
+        return (dependencyPath != null ? dependencyPath : "**") + "#" +
+                (settingsPath != null ? settingsPath : "**") + "#" +
+                (configs != null ? configs : "**") +
+                (isPom ? "#pom" : "") +
+                (lockPath != null ? "#lock=" + lockPath : "");
+    }
+
+    /**
+     * The store is shared by all FitNesse servers using the same Ivy cache, so its key holds the full paths of the
+     * files, not the paths as they appear on the page.
+     */
+    static String createStoreKey(String dependencyPath, String settingsPath, String configs, boolean isPom) {
+        return createCacheKey(fullPath(dependencyPath), fullPath(settingsPath), configs, isPom, null);
+    }
+
+    /**
+     * @return the canonical path, or the absolute path if the path holds Ivy variables.
+     */
+    private static String fullPath(String path) {
+        if (path == null) {
+            return null;
+        }
+        File file = new File(path);
+        if (!path.contains("${")) {
             try {
-				ivy.configure(settingsFile);
-			} catch (Exception e) {
-				throw new IvyClasspathException("Unable to configure ivy with file " + settingsFile.getAbsolutePath(), e);
-			}
+                return file.getCanonicalPath();
+            } catch (IOException e) {
+                // Fall back to the absolute path
+            }
         }
-        return settingsFile;
+        return file.getAbsolutePath();
     }
 
-    private static class CacheElement {
+    private static class Resolution {
+        private final CacheElement element;
+        private final IvyClasspathException failure;
 
-        private final List<File> dependencies;
-        private final File ivyFile;
-        private File settingsFile;
-        private final long ivyFileLastModified;
-        private final long settingsFileLastModified;
+        private Resolution(CacheElement element, IvyClasspathException failure) {
+            this.element = element;
+            this.failure = failure;
+        }
+
+        private CacheElement getElement() throws IvyClasspathException {
+            if (failure != null) {
+                throw failure;
+            }
+            return element;
+        }
+    }
 
-        private CacheElement(File settingsFile, File ivyFile, List<File> dependencies) {
-            this.dependencies = dependencies;
-            this.ivyFile = ivyFile;
-            this.settingsFile = settingsFile;
-            this.ivyFileLastModified = ivyFile.lastModified();
-            this.settingsFileLastModified = settingsFile != null ? settingsFile.lastModified() : 0;
+    private static class Failure {
+        private final Throwable cause;
+        private final long expires;
+
+        private Failure(Throwable cause, long expires) {
+            this.cause = cause;
+            this.expires = expires;
         }
+    }
+
+    static class CacheElement {
+
+        final List<IvyClasspathFingerprint> inputs;
+        final IvyClasspath dependencies;
+        // Warnings and errors of the resolve, shown with the classpath. Not kept in the store.
+        final List<String> messages;
+        // When the classpath was resolved, or read from the store
+        final long created;
+        // A failed refresh is not tried again before this time
+        final long refreshAfter;
+        // When the classpath went stale (its input files changed, or it expired), 0 while it's fresh
+        private volatile long staleSince;
+
+        // Rendered on first use. A race renders the same text twice, which is harmless.
+        private volatile String html;
+        private volatile String summary;
+        private volatile List<String> indexedPaths;
+        private volatile List<String> pathingJar;
 
-        private boolean modified() {
-            return (ivyFile.lastModified() != ivyFileLastModified) &&
-                    (settingsFile == null || settingsFile.lastModified() != settingsFileLastModified);
+        CacheElement(List<IvyClasspathFingerprint> inputs, Collection<File> dependencies) {
+            this(inputs, dependencies, Collections.<String>emptyList());
+        }
+
+        CacheElement(List<IvyClasspathFingerprint> inputs, Collection<File> dependencies, List<String> messages) {
+            this(inputs, dependencies, messages, System.currentTimeMillis(), 0L, 0L);
+        }
+
+        private CacheElement(List<IvyClasspathFingerprint> inputs, Collection<File> dependencies, List<String> messages,
+                             long created, long staleSince, long refreshAfter) {
+            this.inputs = inputs;
+            this.dependencies = IvyClasspath.of(dependencies);
+            this.messages = messages;
+            this.created = created;
+            this.staleSince = staleSince;
+            this.refreshAfter = refreshAfter;
+        }
+
+        /**
+         * @return this stale classpath, with the problems of a failed refresh as warnings.
+         */
+        CacheElement withRefreshProblems(List<String> problems, long refreshAfter) {
+            List<String> warnings = new ArrayList<String>(messages.size() + problems.size());
+            for (String message: messages) {
+                if (!message.startsWith(REFRESH_FAILED)) {
+                    warnings.add(message);
+                }
+            }
+            for (String problem: problems) {
+                warnings.add(REFRESH_FAILED + problem);
+            }
+            return new CacheElement(inputs, dependencies, Collections.unmodifiableList(warnings), created,
+                    staleSince, refreshAfter);
+        }
+
+        boolean isStale() {
+            return staleSince != 0L;
+        }
+
+        long getStaleSince() {
+            return staleSince;
+        }
+
+        void markStale(long since) {
+            if (staleSince == 0L) {
+                staleSince = Math.max(1L, since);
+            }
+        }
+
+        /**
+         * @return the warnings of the resolve and the classpath, as HTML list items.
+         */
+        String getHtml() {
+            String rendered = html;
+            if (rendered == null) {
+                StringBuilder buf = new StringBuilder(htmlLength());
+                appendMessages(buf);
+                appendPaths(buf);
+                rendered = buf.toString();
+                html = rendered;
+            }
+            return rendered;
+        }
+
+        /**
+         * @return the paths of the classpath, preceded by its index jar, or just the paths if it can't be indexed.
+         */
+        List<String> getIndexedPaths(IvyClasspathIndex index, MessageLogger logger) {
+            List<String> paths = indexedPaths;
+            if (paths == null) {
+                try {
+                    paths = index.index(dependencies);
+                } catch (IOException e) {
+                    logger.warn("Unable to index classpath: " + e.getMessage());
+                    return dependencies.getPaths();
+                }
+                indexedPaths = paths;
+            }
+            return paths;
+        }
+
+        /**
+         * @return the path of a pathing jar for the paths, or the paths if the pathing jar can't be written.
+         * The pathing jar is written again if it's gone.
+         */
+        List<String> getPathingJar(IvyClasspathPathingJar pathingJars, List<String> paths, MessageLogger logger) {
+            List<String> jar = pathingJar;
+            if (jar == null || !new File(jar.get(0)).isFile()) {
+                try {
+                    jar = Collections.singletonList(pathingJars.write(paths).getAbsolutePath());
+                } catch (IOException e) {
+                    logger.warn("Unable to write pathing jar: " + e.getMessage());
+                    return paths;
+                }
+                pathingJar = jar;
+            }
+            return jar;
+        }
+
+        /**
+         * @return the warnings of the resolve, a list item with the number of artifacts and the directories
+         * holding most of them, e.g.
+         * "120 artifacts in /home/me/.ivy2/cache: 80 in org.apache, 40 in junit",
+         * and a list item with the full classpath in a collapsed <tt>details</tt> element.
+         */
+        String getSummary() {
+            String rendered = summary;
+            if (rendered == null) {
+                StringBuilder buf = new StringBuilder(htmlLength() + 256);
+                appendMessages(buf);
+                buf.append(summarize(dependencies))
+                    .append("<li><details><summary>Show all ")
+                    .append(dependencies.size())
+                    .append(" artifacts</summary><ul>");
+                appendPaths(buf);
+                rendered = buf.append("</ul></details></li>").toString();
+                summary = rendered;
+            }
+            return rendered;
+        }
+
+        private int htmlLength() {
+            int length = 0;
+            for (String path: dependencies.getPaths()) {
+                length += path.length() + 9;
+            }
+            return length;
+        }
+
+        private void appendPaths(StringBuilder buf) {
+            for (String path: dependencies.getPaths()) {
+                buf.append("<li>").append(path).append("</li>");
+            }
+        }
+
+        private void appendMessages(StringBuilder buf) {
+            for (String message: messages) {
+                buf.append("<li class='warning'>")
+                    .append(message.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;"))
+                    .append("</li>");
+            }
+        }
+
+        private static String summarize(List<File> dependencies) {
+            File root = null;
+            for (File dependency: dependencies) {
+                root = root == null ? dependency.getAbsoluteFile().getParentFile() : commonAncestor(root, dependency.getAbsoluteFile());
+            }
+
+            // Count the artifacts per directory right below the common root
+            Map<String, Integer> counts = new HashMap<String, Integer>();
+            for (File dependency: dependencies) {
+                File file = dependency.getAbsoluteFile();
+                File directory = file;
+                while (directory.getParentFile() != null && !directory.getParentFile().equals(root)) {
+                    directory = directory.getParentFile();
+                }
+                String name = directory == file ? "." : directory.getName();
+                Integer count = counts.get(name);
+                counts.put(name, count == null ? 1 : count + 1);
+            }
+            List<Map.Entry<String, Integer>> directories = new ArrayList<Map.Entry<String, Integer>>(counts.entrySet());
+            Collections.sort(directories, new Comparator<Map.Entry<String, Integer>>() {
+                @Override
+                public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+                    int byCount = b.getValue().compareTo(a.getValue());
+                    return byCount != 0 ? byCount : a.getKey().compareTo(b.getKey());
+                }
+            });
+
+            StringBuilder buf = new StringBuilder(256);
+            buf.append("<li class='summary'>")
+                .append(dependencies.size())
+                .append(" artifacts");
+            if (root != null) {
+                buf.append(" in ").append(root.getPath());
+                String separator = ": ";
+                for (Map.Entry<String, Integer> directory: directories.subList(0, Math.min(SUMMARY_DIRECTORIES, directories.size()))) {
+                    buf.append(separator).append(directory.getValue()).append(" in ").append(directory.getKey());
+                    separator = ", ";
+                }
+                if (directories.size() > SUMMARY_DIRECTORIES) {
+                    buf.append(" and ").append(directories.size() - SUMMARY_DIRECTORIES).append(" more directories");
+                }
+            }
+            return buf.append("</li>").toString();
+        }
+
+        private static File commonAncestor(File directory, File file) {
+            String path = file.getPath();
+            while (directory != null && !path.startsWith(directory.getPath().endsWith(File.separator) ? directory.getPath() : directory.getPath() + File.separator)) {
+                directory = directory.getParentFile();
+            }
+            return directory;
+        }
+
+        boolean modified() {
+            for (IvyClasspathFingerprint input: inputs) {
+                if (!input.matches()) {
+                    return true;
+                }
+            }
+            return false;
         }
     }
 }
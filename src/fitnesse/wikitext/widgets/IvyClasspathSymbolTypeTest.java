@@ -1,8 +1,22 @@
 package fitnesse.wikitext.widgets;
 
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import fitnesse.http.MockRequest;
+import fitnesse.http.SimpleResponse;
 import fitnesse.wiki.PageData;
 import fitnesse.wiki.PathParser;
 import fitnesse.wiki.WikiPage;
@@ -10,7 +24,9 @@ import fitnesse.wiki.WikiPageUtil;
 import fitnesse.wiki.mem.InMemoryPage;
 import fitnesse.wikitext.parser.*;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import util.Maybe;
 
@@ -20,7 +36,12 @@ import static org.junit.Assert.assertEquals;
 
 public class IvyClasspathSymbolTypeTest {
 
-	static final IvyClasspathSymbolType symbolType = new IvyClasspathSymbolType();
+	// Without a store, so tests don't write to the index file in the Ivy cache
+	static final IvyClasspathSymbolType symbolType = new IvyClasspathSymbolType(
+			IvyClasspathCache.fromSystemProperties(), new IvyClasspathStore(null));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
 
     VariableSource mockVariableSource = new VariableSource() {
 
@@ -53,6 +74,8 @@ public class IvyClasspathSymbolTypeTest {
         assertParses("!resolve", "SymbolList[IvyClasspathSymbolType]");
         assertParses("!resolve -s mysettings.xml", "SymbolList[IvyClasspathSymbolType[Text]]");
         assertParses("!resolve -c config1,config2 ivy.xml", "SymbolList[IvyClasspathSymbolType[Text, Comma, Text, Text]]");
+        assertParses("!resolve -lock ivy.lock ivy.xml", "SymbolList[IvyClasspathSymbolType[Text, Text]]");
+        assertParses("!resolve -pathing-jar ivy.xml", "SymbolList[IvyClasspathSymbolType[Text]]");
     }
 
     @Test
@@ -147,6 +170,559 @@ public class IvyClasspathSymbolTypeTest {
     	}
     }
 
+    @Test
+    public void resolvesFromLocalRepository() throws Exception {
+        IvyClasspathTestRepository repository = new IvyClasspathTestRepository(folder.getRoot(), 2, 3, 4).create();
+        Symbol symbol = new Symbol(symbolType);
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.DEPENDENCY_FILE, repository.getIvyFile().getPath()));
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.IVY_SETTINGS_XML, repository.getSettingsFile().getPath()));
+
+        List<File> classpath = symbolType.getClasspathElements(mockTranslator, symbol);
+
+        assertEquals(repository.getArtifactCount() + 1, classpath.size());
+        for (File f: classpath) {
+            assertTrue(f + " should be in the cache", f.getAbsolutePath().startsWith(new File(folder.getRoot(), "cache").getAbsolutePath()));
+        }
+    }
+
+    @Test
+    public void providesIndexedClasspath() throws Exception {
+        IvyClasspathTestRepository repository = new IvyClasspathTestRepository(folder.getRoot(), 2, 2, 3).create();
+        IvyClasspathSymbolType symbolType = new IvyClasspathSymbolType(IvyClasspathCache.fromSystemProperties(), new IvyClasspathStore(null));
+        symbolType.setIndex(new IvyClasspathIndex(new File(folder.getRoot(), "index")));
+        Symbol symbol = new Symbol(symbolType);
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.DEPENDENCY_FILE, repository.getIvyFile().getPath()));
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.IVY_SETTINGS_XML, repository.getSettingsFile().getPath()));
+
+        List<String> paths = new ArrayList<String>(symbolType.providePaths(mockTranslator, symbol));
+
+        List<File> classpath = symbolType.getClasspathElements(mockTranslator, symbol);
+        assertEquals(classpath.size() + 1, paths.size());
+        assertTrue(paths.get(0), new File(paths.get(0)).isFile());
+        assertEquals(new File(folder.getRoot(), "index").getAbsolutePath(), new File(paths.get(0)).getParent());
+    }
+
+    @Test
+    public void providesPathingJar() throws Exception {
+        IvyClasspathTestRepository repository = new IvyClasspathTestRepository(folder.getRoot(), 2, 2, 3).create();
+        IvyClasspathSymbolType symbolType = new IvyClasspathSymbolType(IvyClasspathCache.fromSystemProperties(), new IvyClasspathStore(null));
+        symbolType.setPathingJars(new IvyClasspathPathingJar(new File(folder.getRoot(), "pathing")));
+        Symbol symbol = new Symbol(symbolType);
+        symbol.putProperty(IvyClasspathSymbolType.PATHING_JAR, "true");
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.DEPENDENCY_FILE, repository.getIvyFile().getPath()));
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.IVY_SETTINGS_XML, repository.getSettingsFile().getPath()));
+
+        Collection<String> paths = symbolType.providePaths(mockTranslator, symbol);
+
+        assertEquals(1, paths.size());
+        File pathingJar = new File(paths.iterator().next());
+        assertEquals(new File(folder.getRoot(), "pathing").getAbsolutePath(), pathingJar.getParent());
+        assertEquals(paths, symbolType.providePaths(mockTranslator, symbol));
+        assertTrue(pathingJar.delete());
+        assertEquals("pathing jar is written again", paths, symbolType.providePaths(mockTranslator, symbol));
+        assertTrue(pathingJar.isFile());
+        String html = symbolType.toTarget(mockTranslator, symbol);
+        for (File artifact: symbolType.getClasspathElements(mockTranslator, symbol)) {
+            assertTrue(html.contains("<li>" + artifact.getAbsolutePath() + "</li>"));
+        }
+    }
+
+    @Test
+    public void resolvesAllConfigurationsAtOnce() throws Exception {
+        IvyClasspathTestRepository repository = new IvyClasspathTestRepository(folder.getRoot(), 2, 2, 3).create();
+        String ivyXml = repository.getIvyFile().getPath();
+        String settingsXml = repository.getSettingsFile().getPath();
+        IvyClasspathSymbolType symbolType = new IvyClasspathSymbolType(IvyClasspathCache.fromSystemProperties(), new IvyClasspathStore(null));
+        symbolType.expectConfigurations(ivyXml, settingsXml, "default", false);
+        symbolType.expectConfigurations(ivyXml, settingsXml, "test", false);
+
+        List<File> defaultClasspath = symbolType.getClasspathElements(ivyXml, settingsXml, "default", false, null);
+        List<File> testClasspath = symbolType.getClasspathElements(ivyXml, settingsXml, "test", false, null);
+        List<File> allClasspath = symbolType.getClasspathElements(ivyXml, settingsXml, "*", false, null);
+
+        assertEquals(1, symbolType.getMetrics().getResolves());
+        assertEquals(2, symbolType.getMetrics().getCacheHits());
+        assertEquals(repository.getArtifactCount(), defaultClasspath.size());
+        assertEquals(repository.getArtifactCount() + 1, testClasspath.size());
+        assertEquals(testClasspath, allClasspath);
+        IvyClasspathSymbolType fresh = new IvyClasspathSymbolType(IvyClasspathCache.fromSystemProperties(), new IvyClasspathStore(null));
+        assertEquals(fresh.getClasspathElements(ivyXml, settingsXml, "test", false, null), testClasspath);
+    }
+
+    @Test
+    public void resolvesOnlyConfigurationsAskedFor() throws Exception {
+        IvyClasspathTestRepository repository = new IvyClasspathTestRepository(folder.getRoot(), 2, 2, 3).create();
+        String ivyXml = repository.getIvyFile().getPath();
+        String settingsXml = repository.getSettingsFile().getPath();
+        IvyClasspathSymbolType symbolType = new IvyClasspathSymbolType(IvyClasspathCache.fromSystemProperties(), new IvyClasspathStore(null));
+
+        symbolType.getClasspathElements(ivyXml, settingsXml, "default", false, null);
+
+        assertNull(symbolType.getCache().peek(ivyXml + "#" + settingsXml + "#test"));
+        symbolType.getClasspathElements(ivyXml, settingsXml, "test", false, null);
+        symbolType.getClasspathElements(ivyXml, settingsXml, "default", false, null);
+        assertEquals(2, symbolType.getMetrics().getResolves());
+    }
+
+    @Test
+    public void resolvesOnlyChangedDependencies() throws Exception {
+        IvyClasspathTestRepository repository = new IvyClasspathTestRepository(folder.getRoot(), 1, 2, 3).create();
+        String ivyXml = repository.getIvyFile().getPath();
+        String settingsXml = repository.getSettingsFile().getPath();
+        IvyClasspathSymbolType symbolType = new IvyClasspathSymbolType(IvyClasspathCache.fromSystemProperties(), new IvyClasspathStore(null));
+        symbolType.getClasspathElements(ivyXml, settingsXml, "default", false, null);
+
+        repository.dependOn("lib0-0", "lib0-1", "lib1-2");
+        List<File> classpath = symbolType.getClasspathElements(ivyXml, settingsXml, "default", false, null);
+
+        assertEquals(1, symbolType.getMetrics().getIncrementalResolves());
+        IvyClasspathSymbolType fresh = new IvyClasspathSymbolType(IvyClasspathCache.fromSystemProperties(), new IvyClasspathStore(null));
+        assertEquals(fresh.getClasspathElements(ivyXml, settingsXml, "default", false, null), classpath);
+        assertEquals(5, classpath.size());
+
+        // The order follows the descriptor, not the order in which the dependencies were added
+        repository.dependOn("lib1-2", "lib0-0", "lib0-1");
+        classpath = symbolType.getClasspathElements(ivyXml, settingsXml, "default", false, null);
+
+        assertEquals(2, symbolType.getMetrics().getIncrementalResolves());
+        fresh = new IvyClasspathSymbolType(IvyClasspathCache.fromSystemProperties(), new IvyClasspathStore(null));
+        assertEquals(fresh.getClasspathElements(ivyXml, settingsXml, "default", false, null), classpath);
+        assertTrue(classpath.get(0).getName(), classpath.get(0).getName().startsWith("lib1-2"));
+    }
+
+    @Test
+    public void servesStaleClasspathWhileRefreshing() throws Exception {
+        IvyClasspathTestRepository repository = new IvyClasspathTestRepository(folder.getRoot(), 1, 2, 3).create();
+        String ivyXml = repository.getIvyFile().getPath();
+        String settingsXml = repository.getSettingsFile().getPath();
+        IvyClasspathCache cache = IvyClasspathCache.fromSystemProperties();
+        cache.setStaleWhileRevalidate(0, 1, TimeUnit.MINUTES);
+        IvyClasspathSymbolType symbolType = new IvyClasspathSymbolType(cache, new IvyClasspathStore(null));
+        List<File> classpath = symbolType.getClasspathElements(ivyXml, settingsXml, "default", false, null);
+
+        repository.dependOn("lib0-0", "lib0-1", "lib1-2");
+
+        assertSame(classpath, symbolType.getClasspathElements(ivyXml, settingsXml, "default", false, null));
+        IvyClasspathSymbolType.CacheElement refreshed = awaitRefresh(symbolType, ivyXml, settingsXml, classpath);
+        assertEquals(5, refreshed.dependencies.size());
+        assertEquals(2, symbolType.getMetrics().getResolves());
+    }
+
+    @Test
+    public void keepsLastClasspathIfRefreshFails() throws Exception {
+        IvyClasspathTestRepository repository = new IvyClasspathTestRepository(folder.getRoot(), 1, 2, 3).create();
+        String ivyXml = repository.getIvyFile().getPath();
+        String settingsXml = repository.getSettingsFile().getPath();
+        IvyClasspathCache cache = IvyClasspathCache.fromSystemProperties();
+        cache.setStaleWhileRevalidate(0, 1, TimeUnit.MINUTES);
+        IvyClasspathSymbolType symbolType = new IvyClasspathSymbolType(cache, new IvyClasspathStore(null));
+        List<File> classpath = symbolType.getClasspathElements(ivyXml, settingsXml, "default", false, null);
+
+        repository.dependOn("lib0-0", "no-such-module");
+        symbolType.getClasspathElements(ivyXml, settingsXml, "default", false, null);
+        IvyClasspathSymbolType.CacheElement element = symbolType.getCacheElement(ivyXml, settingsXml, "default", false, null);
+        for (int i = 0; i < 500 && element.messages.isEmpty(); i++) {
+            Thread.sleep(20);
+            element = symbolType.getCacheElement(ivyXml, settingsXml, "default", false, null);
+        }
+
+        assertEquals(classpath, element.dependencies);
+        assertTrue(element.isStale());
+        assertFalse(element.messages.isEmpty());
+        assertTrue(element.getHtml(), element.getHtml().startsWith("<li class='warning'>WARN:Unable to refresh the classpath"));
+        assertEquals(1, symbolType.getMetrics().getResolveFailures());
+    }
+
+    private static IvyClasspathSymbolType.CacheElement awaitRefresh(IvyClasspathSymbolType symbolType, String ivyXml,
+                                                                    String settingsXml, List<File> stale) throws Exception {
+        for (int i = 0; i < 500; i++) {
+            IvyClasspathSymbolType.CacheElement element = symbolType.getCacheElement(ivyXml, settingsXml, "default", false, null);
+            if (element.dependencies != stale) {
+                return element;
+            }
+            Thread.sleep(20);
+        }
+        throw new AssertionError("classpath was not refreshed");
+    }
+
+    @Test
+    public void resolvesInFullIfChangedDependenciesShareModules() throws Exception {
+        IvyClasspathTestRepository repository = new IvyClasspathTestRepository(folder.getRoot(), 2, 2, 3).create();
+        String ivyXml = repository.getIvyFile().getPath();
+        String settingsXml = repository.getSettingsFile().getPath();
+        IvyClasspathSymbolType symbolType = new IvyClasspathSymbolType(IvyClasspathCache.fromSystemProperties(), new IvyClasspathStore(null));
+        symbolType.getClasspathElements(ivyXml, settingsXml, "default", false, null);
+
+        repository.dependOn("lib0-0", "lib0-1");
+        List<File> classpath = symbolType.getClasspathElements(ivyXml, settingsXml, "default", false, null);
+
+        assertEquals(0, symbolType.getMetrics().getIncrementalResolves());
+        IvyClasspathSymbolType fresh = new IvyClasspathSymbolType(IvyClasspathCache.fromSystemProperties(), new IvyClasspathStore(null));
+        assertEquals(fresh.getClasspathElements(ivyXml, settingsXml, "default", false, null), classpath);
+    }
+
+    @Test
+    public void resolvesConfigurationFromLocalRepository() throws Exception {
+        IvyClasspathTestRepository repository = new IvyClasspathTestRepository(folder.getRoot(), 2, 3, 4).create();
+        Symbol symbol = new Symbol(symbolType);
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.DEPENDENCY_FILE, repository.getIvyFile().getPath()));
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.IVY_SETTINGS_XML, repository.getSettingsFile().getPath()));
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.CONFIGURATION, "default"));
+
+        List<File> classpath = symbolType.getClasspathElements(mockTranslator, symbol);
+
+        assertEquals(repository.getArtifactCount(), classpath.size());
+        for (File f: classpath) {
+            assertFalse(f.getName().startsWith(IvyClasspathTestRepository.TEST_MODULE));
+        }
+    }
+
+    @Test
+    public void cacheHitDoesNotResolveAgain() throws Exception {
+        CountingIvyClasspathSymbolType countingSymbolType = new CountingIvyClasspathSymbolType();
+        Symbol symbol = new Symbol(countingSymbolType);
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.DEPENDENCY_FILE, emptyIvyXml().getPath()));
+
+        List<File> first = countingSymbolType.getClasspathElements(mockTranslator, symbol);
+        List<File> second = countingSymbolType.getClasspathElements(mockTranslator, symbol);
+
+        assertSame(first, second);
+        assertEquals(1, countingSymbolType.resolutions.get());
+    }
+
+    @Test
+    public void concurrentRequestsForTheSameKeyResolveOnce() throws Exception {
+        final int threadCount = 8;
+        final CountingIvyClasspathSymbolType countingSymbolType = new CountingIvyClasspathSymbolType();
+        countingSymbolType.gate = new CountDownLatch(1);
+        final Symbol symbol = new Symbol(countingSymbolType);
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.DEPENDENCY_FILE, emptyIvyXml().getPath()));
+
+        final CountDownLatch started = new CountDownLatch(threadCount);
+        final List<Object> results = new ArrayList<Object>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    Object result;
+                    try {
+                        result = countingSymbolType.getClasspathElements(mockTranslator, symbol);
+                    } catch (IvyClasspathException e) {
+                        result = e;
+                    }
+                    synchronized (results) {
+                        results.add(result);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+
+        started.await();
+        Thread.sleep(200);
+        countingSymbolType.gate.countDown();
+        for (Thread thread: threads) {
+            thread.join();
+        }
+
+        assertEquals(1, countingSymbolType.resolutions.get());
+        assertEquals(threadCount, results.size());
+        for (Object result: results) {
+            assertSame(results.get(0), result);
+        }
+    }
+
+    @Test
+    public void resolvesOncePerRender() throws Exception {
+        CountingIvyClasspathSymbolType countingSymbolType = new CountingIvyClasspathSymbolType();
+        Symbol symbol = new Symbol(countingSymbolType);
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.DEPENDENCY_FILE, emptyIvyXml().getPath()));
+
+        countingSymbolType.providePaths(mockTranslator, symbol);
+        countingSymbolType.toTarget(mockTranslator, symbol);
+
+        assertEquals(1, countingSymbolType.lookups.get());
+        assertEquals(1, countingSymbolType.resolutions.get());
+    }
+
+    @Test
+    public void rendersPlaceholderWhileResolvingInBackground() throws Exception {
+        CountingIvyClasspathSymbolType countingSymbolType = new CountingIvyClasspathSymbolType();
+        countingSymbolType.setAsync(true);
+        countingSymbolType.register();
+        countingSymbolType.gate = new CountDownLatch(1);
+        Symbol symbol = new Symbol(countingSymbolType);
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.DEPENDENCY_FILE, emptyIvyXml().getPath()));
+
+        String html = countingSymbolType.toTarget(mockTranslator, symbol);
+        assertTrue(html, html.contains("<li class='pending'>Resolving classpath...</li>"));
+        Matcher url = Pattern.compile("classpath=([^']*)'").matcher(html);
+        assertTrue(html, url.find());
+        String cacheKey = URLDecoder.decode(url.group(1), "UTF-8");
+
+        MockRequest request = new MockRequest();
+        request.addInput(IvyClasspathResponder.CLASSPATH_INPUT, cacheKey);
+        assertEquals(202, new IvyClasspathResponder().makeResponse(null, request).getStatus());
+
+        countingSymbolType.gate.countDown();
+        SimpleResponse response;
+        do {
+            Thread.sleep(10);
+            response = (SimpleResponse) new IvyClasspathResponder().makeResponse(null, request);
+        } while (response.getStatus() == 202);
+        assertEquals(200, response.getStatus());
+        assertEquals("", response.getContent());
+        assertFalse(countingSymbolType.isResolving(cacheKey));
+
+        html = countingSymbolType.toTarget(mockTranslator, new Symbol(countingSymbolType).add(symbol.getChildren().get(0)));
+        assertTrue(html, html.endsWith("<ul class='meta'></ul>"));
+        assertEquals(1, countingSymbolType.resolutions.get());
+    }
+
+    @Test
+    public void retriesFailedBackgroundResolve() throws Exception {
+        CountingIvyClasspathSymbolType countingSymbolType = new CountingIvyClasspathSymbolType();
+        countingSymbolType.setAsync(true);
+        countingSymbolType.register();
+        Symbol symbol = new Symbol(countingSymbolType);
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.DEPENDENCY_FILE, "badfile.xml"));
+
+        String html = countingSymbolType.toTarget(mockTranslator, symbol);
+        Matcher url = Pattern.compile("classpath=([^']*)'").matcher(html);
+        assertTrue(html, url.find());
+        String cacheKey = URLDecoder.decode(url.group(1), "UTF-8");
+        while (countingSymbolType.isResolving(cacheKey)) {
+            Thread.sleep(10);
+        }
+
+        html = countingSymbolType.toTarget(mockTranslator, new Symbol(countingSymbolType).add(symbol.getChildren().get(0)));
+        assertTrue(html, html.contains("<li class='pending'>Resolving classpath...</li>"));
+        while (countingSymbolType.isResolving(cacheKey)) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, countingSymbolType.resolutions.get());
+        String problems = countingSymbolType.renderResolved(cacheKey);
+        assertEquals("<li class='error'>ERROR:Ivy/pom file not found: badfile.xml</li>", problems);
+        assertNull("rendered once", countingSymbolType.renderResolved(cacheKey));
+    }
+
+    @Test
+    public void rendersLargeClasspathsAsSummary() throws Exception {
+        File root = folder.getRoot();
+        final List<File> classpath = Arrays.asList(new File(root, "org.a/a/jars/a-1.0.jar"),
+                new File(root, "org.a/b/jars/b-1.0.jar"), new File(root, "org.c/c/jars/c-1.0.jar"));
+        IvyClasspathSymbolType symbolType = new IvyClasspathSymbolType(IvyClasspathCache.fromSystemProperties(), new IvyClasspathStore(null)) {
+            @Override
+            CacheElement resolve(String dependencyPath, String settingsPath, String configs, boolean isPom) {
+                return new CacheElement(Collections.<IvyClasspathFingerprint>emptyList(), classpath);
+            }
+        };
+        symbolType.setSummaryThreshold(2);
+        Symbol symbol = new Symbol(symbolType);
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.DEPENDENCY_FILE, "summary.xml"));
+
+        String html = symbolType.toTarget(mockTranslator, symbol);
+
+        assertTrue(html, html.contains("<li class='summary'>3 artifacts in " + root.getPath() + ": 2 in org.a, 1 in org.c</li>"));
+        assertTrue(html, html.contains("<li><details><summary>Show all 3 artifacts</summary><ul><li>"
+                + classpath.get(0).getPath() + "</li>"));
+        assertTrue(html, html.endsWith("</ul></details></li></ul>"));
+    }
+
+    @Test
+    public void rendersCacheElementOnce() {
+        File jar = new File(folder.getRoot(), "a-1.0.jar");
+        IvyClasspathSymbolType.CacheElement element = new IvyClasspathSymbolType.CacheElement(
+                Collections.<IvyClasspathFingerprint>emptyList(), Collections.singletonList(jar));
+
+        assertEquals("<li>" + jar.getAbsolutePath() + "</li>", element.getHtml());
+        assertSame(element.getHtml(), element.getHtml());
+    }
+
+    @Test
+    public void resolutionFailureIsRememberedPerRender() throws Exception {
+        CountingIvyClasspathSymbolType countingSymbolType = new CountingIvyClasspathSymbolType();
+        Symbol symbol = new Symbol(countingSymbolType);
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.DEPENDENCY_FILE, "badfile.xml"));
+
+        assertTrue(countingSymbolType.providePaths(mockTranslator, symbol).isEmpty());
+        String html = countingSymbolType.toTarget(mockTranslator, symbol);
+
+        assertTrue(html, html.contains("<li class='error'>ERROR:Ivy/pom file not found: badfile.xml</li>"));
+        assertEquals(1, countingSymbolType.lookups.get());
+    }
+
+    @Test
+    public void classpathSurvivesARestart() throws Exception {
+        File storeFile = new File(folder.getRoot(), "store.idx");
+        Symbol symbol = new Symbol(symbolType);
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.DEPENDENCY_FILE, emptyIvyXml().getPath()));
+
+        CountingIvyClasspathSymbolType beforeRestart = new CountingIvyClasspathSymbolType(new IvyClasspathStore(storeFile));
+        List<File> classpath = beforeRestart.getClasspathElements(mockTranslator, symbol);
+        CountingIvyClasspathSymbolType afterRestart = new CountingIvyClasspathSymbolType(new IvyClasspathStore(storeFile));
+
+        assertEquals(classpath, afterRestart.getClasspathElements(mockTranslator, symbol));
+        assertEquals(1, beforeRestart.resolutions.get());
+        assertEquals(0, afterRestart.resolutions.get());
+    }
+
+    @Test
+    public void storeKeyHoldsFullPaths() throws Exception {
+        String workingDirectory = new File("").getCanonicalPath();
+
+        assertEquals(workingDirectory + File.separator + "ivy.xml#" + workingDirectory + File.separator + "ivysettings.xml#default",
+                IvyClasspathSymbolType.createStoreKey("ivy.xml", "./ivysettings.xml", "default", false));
+        assertEquals(workingDirectory + File.separator + "pom.xml#**#*#pom",
+                IvyClasspathSymbolType.createStoreKey("pom.xml", null, "*", true));
+    }
+
+    @Test
+    public void changedIvyFileIsResolvedAgain() throws Exception {
+        CountingIvyClasspathSymbolType countingSymbolType = new CountingIvyClasspathSymbolType();
+        File ivyXml = emptyIvyXml();
+        Symbol symbol = new Symbol(countingSymbolType);
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.DEPENDENCY_FILE, ivyXml.getPath()));
+
+        countingSymbolType.getClasspathElements(mockTranslator, symbol);
+        write(ivyXml, "<ivy-module version=\"2.0\">" +
+                "<info organisation=\"org.fitnesse.test\" module=\"empty\" revision=\"1.1\"/>" +
+                "<configurations><conf name=\"default\"/></configurations>" +
+                "</ivy-module>");
+        countingSymbolType.getClasspathElements(mockTranslator, symbol);
+
+        assertEquals(2, countingSymbolType.resolutions.get());
+    }
+
+    @Test
+    public void touchedIvyFileIsNotResolvedAgain() throws Exception {
+        CountingIvyClasspathSymbolType countingSymbolType = new CountingIvyClasspathSymbolType();
+        File ivyXml = emptyIvyXml();
+        Symbol symbol = new Symbol(countingSymbolType);
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.DEPENDENCY_FILE, ivyXml.getPath()));
+
+        countingSymbolType.getClasspathElements(mockTranslator, symbol);
+        assertTrue(ivyXml.setLastModified(ivyXml.lastModified() + 60000));
+        countingSymbolType.getClasspathElements(mockTranslator, symbol);
+
+        assertEquals(1, countingSymbolType.resolutions.get());
+    }
+
+    @Test
+    public void lockedClasspathIsReadFromTheLockFile() throws Exception {
+        File lockFile = new File(folder.getRoot(), "ivy.lock");
+        Symbol symbol = new Symbol(symbolType);
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.DEPENDENCY_FILE, emptyIvyXml().getPath()));
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.LOCK_FILE, lockFile.getPath()));
+
+        CountingIvyClasspathSymbolType firstRun = new CountingIvyClasspathSymbolType();
+        List<File> classpath = firstRun.getClasspathElements(mockTranslator, symbol);
+        CountingIvyClasspathSymbolType secondRun = new CountingIvyClasspathSymbolType();
+
+        assertTrue(lockFile.isFile());
+        assertEquals(classpath, secondRun.getClasspathElements(mockTranslator, symbol));
+        assertEquals(1, firstRun.resolutions.get());
+        assertEquals(0, secondRun.resolutions.get());
+    }
+
+    @Test
+    public void lockFileIsIgnoredWhenIvyFileChanges() throws Exception {
+        File lockFile = new File(folder.getRoot(), "ivy.lock");
+        File ivyXml = emptyIvyXml();
+        Symbol symbol = new Symbol(symbolType);
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.DEPENDENCY_FILE, ivyXml.getPath()));
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.LOCK_FILE, lockFile.getPath()));
+
+        new CountingIvyClasspathSymbolType().getClasspathElements(mockTranslator, symbol);
+        write(ivyXml, "<ivy-module version=\"2.0\">" +
+                "<info organisation=\"org.fitnesse.test\" module=\"empty\" revision=\"1.1\"/>" +
+                "<configurations><conf name=\"default\"/></configurations>" +
+                "</ivy-module>");
+        CountingIvyClasspathSymbolType secondRun = new CountingIvyClasspathSymbolType();
+        secondRun.getClasspathElements(mockTranslator, symbol);
+
+        assertEquals(1, secondRun.resolutions.get());
+    }
+
+    @Test
+    public void loadIvyXmlWithLockFile() throws Exception {
+        String html = translateToHtml(null, "!resolve -lock ivy.lock badfile.xml\n", mockVariableSource);
+        assertTrue(html, html.startsWith("<p class='meta'>Classpath from \"badfile.xml\" and configuration \"*\", locked in \"ivy.lock\":</p>"));
+    }
+
+    @Test
+    public void loadIvyXmlWithCommaSeparatedConfigs() throws Exception {
+        String html = translateToHtml(null, "!resolve -c default,test -lock ivy.lock badfile.xml\n", mockVariableSource);
+        assertTrue(html, html.startsWith("<p class='meta'>Classpath from \"badfile.xml\" and configuration \"default,test\", locked in \"ivy.lock\":</p>"));
+    }
+
+    @Test
+    public void loadMultipleIvyXmls() throws Exception {
+        String html = translateToHtml(null, "!resolve badfile.xml otherfile.xml\n", mockVariableSource);
+        assertTrue(html, html.startsWith("<p class='meta'>Classpath from \"badfile.xml\", \"otherfile.xml\" and configuration \"*\":</p>"));
+        assertTrue(html, html.contains("<li class='error'>ERROR:Ivy/pom file not found: badfile.xml</li>"));
+        assertTrue(html, html.contains("<li class='error'>ERROR:Ivy/pom file not found: otherfile.xml</li>"));
+    }
+
+    @Test
+    public void resolvesEachDependencyFileOnce() throws Exception {
+        File core = emptyIvyXml();
+        File web = write(new File(folder.newFolder("web"), "ivy.xml"), "<ivy-module version=\"2.0\">" +
+                "<info organisation=\"org.fitnesse.test\" module=\"web\" revision=\"1.0\"/>" +
+                "<configurations><conf name=\"default\"/></configurations>" +
+                "</ivy-module>");
+        CountingIvyClasspathSymbolType countingSymbolType = new CountingIvyClasspathSymbolType();
+        Symbol symbol = new Symbol(countingSymbolType);
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.DEPENDENCY_FILE, core.getPath()));
+        symbol.add(optionSymbol(IvyClasspathSymbolType.OptionType.DEPENDENCY_FILE, web.getPath()));
+
+        assertTrue(countingSymbolType.getClasspathElements(mockTranslator, symbol).isEmpty());
+        assertTrue(countingSymbolType.getClasspathElements(mockTranslator, symbol).isEmpty());
+
+        assertEquals(2, countingSymbolType.resolutions.get());
+    }
+
+    @Test
+    public void mergesClasspathsInDeclarationOrder() {
+        File junit = new File("jars", "junit-4.11.jar");
+        File hamcrest = new File("jars", "hamcrest-core-1.3.jar");
+        File oldJunit = new File("jars", "junit-3.8.1.jar");
+        final List<String> warnings = new ArrayList<String>();
+        IvyClasspathMessageLogger logger = new IvyClasspathMessageLogger() {
+            @Override
+            public void log(String msg, int level) {
+                warnings.add(msg);
+            }
+        };
+
+        IvyClasspathSymbolType.CacheElement merged = IvyClasspathSymbolType.merge(Arrays.asList("core.xml", "web.xml"), Arrays.asList(
+                new IvyClasspathSymbolType.CacheElement(Collections.<IvyClasspathFingerprint>emptyList(), Arrays.asList(junit, hamcrest)),
+                new IvyClasspathSymbolType.CacheElement(Collections.<IvyClasspathFingerprint>emptyList(), Arrays.asList(hamcrest, oldJunit))),
+                logger);
+
+        assertEquals(Arrays.asList(junit, hamcrest, oldJunit), merged.dependencies);
+        assertEquals(Arrays.asList("WARN: Version conflict: junit-3.8.1.jar (from web.xml) and junit-4.11.jar (from core.xml) are both on the classpath"), warnings);
+    }
+
+    @Test
+    public void rendersWarningsWithTheClasspath() {
+        File junit = new File("jars", "junit-4.11.jar");
+        File oldJunit = new File("jars", "junit-3.8.1.jar");
+
+        IvyClasspathSymbolType.CacheElement merged = IvyClasspathSymbolType.merge(Arrays.asList("core.xml", "web.xml"), Arrays.asList(
+                new IvyClasspathSymbolType.CacheElement(Collections.<IvyClasspathFingerprint>emptyList(), Arrays.asList(junit),
+                        Arrays.asList("WARN:\t[NOT FOUND  ] org#optional;1.0!optional.jar")),
+                new IvyClasspathSymbolType.CacheElement(Collections.<IvyClasspathFingerprint>emptyList(), Arrays.asList(oldJunit))),
+                new IvyClasspathMessageLogger());
+
+        assertEquals("<li class='warning'>WARN:\t[NOT FOUND  ] org#optional;1.0!optional.jar</li>" +
+                "<li class='warning'>WARN:Version conflict: junit-3.8.1.jar (from web.xml) and junit-4.11.jar (from core.xml) are both on the classpath</li>" +
+                "<li>" + junit.getAbsolutePath() + "</li><li>" + oldJunit.getAbsolutePath() + "</li>", merged.getHtml());
+    }
+
     @Test
     public void loadIvyXml() throws Exception {
         String pageContents = "!resolve ivy.xml\n";
@@ -184,6 +760,54 @@ public class IvyClasspathSymbolTypeTest {
         assertTrue(html, html.startsWith("<p class='meta'>Classpath from \"ivy.xml\", with settings file \"ivysettings.xml\" and configuration \"default\":</p>"));
     }
 
+    private File emptyIvyXml() throws IOException {
+        return write(folder.newFile("ivy.xml"), "<ivy-module version=\"2.0\">" +
+                "<info organisation=\"org.fitnesse.test\" module=\"empty\" revision=\"1.0\"/>" +
+                "<configurations><conf name=\"default\"/></configurations>" +
+                "</ivy-module>");
+    }
+
+    private static File write(File file, String content) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    static class CountingIvyClasspathSymbolType extends IvyClasspathSymbolType {
+        final AtomicInteger lookups = new AtomicInteger();
+        final AtomicInteger resolutions = new AtomicInteger();
+        volatile CountDownLatch gate = new CountDownLatch(0);
+
+        CountingIvyClasspathSymbolType() {
+            this(new IvyClasspathStore(null));
+        }
+
+        CountingIvyClasspathSymbolType(IvyClasspathStore store) {
+            super(IvyClasspathCache.fromSystemProperties(), store);
+        }
+
+        @Override
+        CacheElement getCacheElement(Translator translator, Symbol symbol) throws IvyClasspathException {
+            lookups.incrementAndGet();
+            return super.getCacheElement(translator, symbol);
+        }
+
+        @Override
+        CacheElement resolve(String dependencyPath, String settingsPath, String configs, boolean isPom) throws IvyClasspathException {
+            resolutions.incrementAndGet();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new IvyClasspathException("Interrupted", e);
+            }
+            return super.resolve(dependencyPath, settingsPath, configs, isPom);
+        }
+    }
+
     private Symbol optionSymbol(IvyClasspathSymbolType.OptionType configuration, String value) {
         return new Symbol(SymbolType.Text, value).putProperty(configuration.name(), "");
     }
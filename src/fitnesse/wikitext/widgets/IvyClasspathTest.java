@@ -0,0 +1,49 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IvyClasspathTest {
+
+    private final File junit = new File("lib/junit-4.11.jar");
+    private final File hamcrest = new File("lib/hamcrest-core-1.3.jar");
+
+    @Test
+    public void keepsArtifactsInOrder() {
+        IvyClasspath classpath = IvyClasspath.of(Arrays.asList(junit, hamcrest));
+
+        assertEquals(Arrays.asList(junit, hamcrest), classpath);
+        assertEquals(Arrays.asList(junit.getAbsolutePath(), hamcrest.getAbsolutePath()), classpath.getPaths());
+    }
+
+    @Test
+    public void sharesArtifactsBetweenClasspaths() {
+        IvyClasspath first = IvyClasspath.of(Arrays.asList(junit, hamcrest));
+        int artifactCount = IvyClasspath.getArtifactCount();
+        IvyClasspath second = IvyClasspath.of(Collections.singletonList(new File("lib/hamcrest-core-1.3.jar")));
+
+        assertEquals(artifactCount, IvyClasspath.getArtifactCount());
+        assertSame(first.get(1), second.get(0));
+        assertSame(first.getPaths().get(1), second.getPaths().get(0));
+    }
+
+    @Test
+    public void pathsAreNotCopied() {
+        IvyClasspath classpath = IvyClasspath.of(Collections.singletonList(junit));
+
+        assertSame(classpath.getPaths(), classpath.getPaths());
+        assertSame(classpath, IvyClasspath.of(classpath));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void isReadOnly() {
+        List<String> paths = IvyClasspath.of(Collections.singletonList(junit)).getPaths();
+        paths.add("other.jar");
+    }
+}
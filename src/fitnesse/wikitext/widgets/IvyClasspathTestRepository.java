@@ -0,0 +1,193 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Generates an Ivy repository on the local file system, with a settings file to use it.
+ * Tests and benchmarks can resolve from it without network access, with predictable results.
+ *
+ * <p>The modules form a layered graph: <tt>depth</tt> levels of <tt>width</tt> modules each.
+ * Every module depends on <tt>fanOut</tt> modules of the next level, so modules are shared by
+ * several dependants, like in real dependency graphs. The root module (<tt>ivy.xml</tt>) depends on
+ * all modules of the first level in configuration <tt>default</tt>, and on one extra module in
+ * configuration <tt>test</tt>.
+ * Every module has one jar, so the <tt>default</tt> classpath holds <tt>depth * width</tt> artifacts.
+ *
+ * <p>The layout of <tt>dir</tt>:
+ * <pre>
+ * ivysettings.xml       settings file, with a file system resolver and its own cache
+ * ivy.xml               the root module
+ * repository/           the generated modules
+ * cache/                Ivy cache, filled by resolves
+ * </pre>
+ */
+class IvyClasspathTestRepository {
+
+    static final String ORGANISATION = "org.fitnesse.fixture";
+    static final String TEST_MODULE = "testlib";
+
+    private final File dir;
+    private final int fanOut;
+    private final int depth;
+    private final int width;
+
+    IvyClasspathTestRepository(File dir, int fanOut, int depth, int width) {
+        if (fanOut > width) {
+            throw new IllegalArgumentException("Fan-out (" + fanOut + ") can not be larger than the width (" + width + ")");
+        }
+        this.dir = dir;
+        this.fanOut = fanOut;
+        this.depth = depth;
+        this.width = width;
+    }
+
+    /**
+     * A repository holding about <tt>artifacts</tt> artifacts, in 5 levels with a fan-out of 3.
+     */
+    static IvyClasspathTestRepository ofSize(File dir, int artifacts) {
+        int depth = Math.min(5, artifacts);
+        int width = Math.max(3, artifacts / depth);
+        return new IvyClasspathTestRepository(dir, 3, depth, width);
+    }
+
+    IvyClasspathTestRepository create() throws IOException {
+        File repository = getRepositoryDir();
+        for (int level = 0; level < depth; level++) {
+            for (int i = 0; i < width; i++) {
+                String name = moduleName(level, i);
+                File moduleDir = new File(repository, ORGANISATION + "/" + name + "/1.0");
+                write(new File(moduleDir, "ivy.xml"), module(name, level + 1, i, fanOut, null));
+                writeJar(new File(moduleDir, name + ".jar"), name);
+            }
+        }
+        File testModuleDir = new File(repository, ORGANISATION + "/" + TEST_MODULE + "/1.0");
+        write(new File(testModuleDir, "ivy.xml"), module(TEST_MODULE, depth, 0, 0, null));
+        writeJar(new File(testModuleDir, TEST_MODULE + ".jar"), TEST_MODULE);
+
+        write(getIvyFile(), module("root", 0, 0, width, TEST_MODULE));
+
+        writeSettings(getSettingsFile(), "filesystem", repository.getAbsolutePath(), new File(dir, "cache"));
+        return this;
+    }
+
+    /**
+     * Write a settings file that reads the repository over HTTP, e.g. from a server that serves
+     * {@link #getRepositoryDir()}. It has a cache of its own.
+     */
+    File createHttpSettings(String baseUrl) throws IOException {
+        File settings = new File(dir, "ivysettings-http.xml");
+        writeSettings(settings, "url", baseUrl, new File(dir, "http-cache"));
+        return settings;
+    }
+
+    private static void writeSettings(File settings, String resolver, String root, File cache) throws IOException {
+        String pattern = root + "/[organisation]/[module]/[revision]/";
+        write(settings, "<ivysettings>\n" +
+                "  <settings defaultResolver=\"fixture\"/>\n" +
+                "  <caches defaultCacheDir=\"" + cache.getAbsolutePath() + "\"/>\n" +
+                "  <resolvers>\n" +
+                "    <" + resolver + " name=\"fixture\">\n" +
+                "      <ivy pattern=\"" + pattern + "ivy.xml\"/>\n" +
+                "      <artifact pattern=\"" + pattern + "[artifact].[ext]\"/>\n" +
+                "    </" + resolver + ">\n" +
+                "  </resolvers>\n" +
+                "</ivysettings>\n");
+    }
+
+    File getRepositoryDir() {
+        return new File(dir, "repository");
+    }
+
+    /**
+     * Rewrite the root module, so it depends on the given modules in configuration <tt>default</tt>.
+     */
+    IvyClasspathTestRepository dependOn(String... modules) throws IOException {
+        StringBuilder xml = new StringBuilder("<ivy-module version=\"2.0\">\n")
+                .append("  <info organisation=\"").append(ORGANISATION).append("\" module=\"root\" revision=\"1.0\"/>\n")
+                .append("  <configurations><conf name=\"default\"/><conf name=\"test\" extends=\"default\"/></configurations>\n")
+                .append("  <publications/>\n")
+                .append("  <dependencies>\n");
+        for (String module: modules) {
+            xml.append("    <dependency org=\"").append(ORGANISATION).append("\" name=\"").append(module)
+                    .append("\" rev=\"1.0\" conf=\"default->default\"/>\n");
+        }
+        write(getIvyFile(), xml.append("  </dependencies>\n</ivy-module>\n").toString());
+        return this;
+    }
+
+    File getSettingsFile() {
+        return new File(dir, "ivysettings.xml");
+    }
+
+    File getIvyFile() {
+        return new File(dir, "ivy.xml");
+    }
+
+    /**
+     * @return the number of artifacts on the <tt>default</tt> classpath of the root module.
+     */
+    int getArtifactCount() {
+        return depth * width;
+    }
+
+    static String moduleName(int level, int i) {
+        return "lib" + level + "-" + i;
+    }
+
+    /**
+     * @param level the level the dependencies are on; the module has none if this is past the last level
+     * @param i the index of the module in its level
+     * @param dependencies the number of dependencies on the next level
+     */
+    private String module(String name, int level, int i, int dependencies, String testDependency) {
+        StringBuilder xml = new StringBuilder("<ivy-module version=\"2.0\">\n")
+                .append("  <info organisation=\"").append(ORGANISATION).append("\" module=\"").append(name).append("\" revision=\"1.0\"/>\n")
+                .append("  <configurations><conf name=\"default\"/><conf name=\"test\" extends=\"default\"/></configurations>\n")
+                .append("  <publications>").append(testDependency == null ? "<artifact conf=\"default\"/>" : "").append("</publications>\n")
+                .append("  <dependencies>\n");
+        if (level < depth) {
+            for (int j = 0; j < dependencies; j++) {
+                // Spread the dependencies, so each module of the next level is used by about as many modules
+                xml.append("    <dependency org=\"").append(ORGANISATION).append("\" name=\"")
+                        .append(moduleName(level, (i * dependencies + j) % width)).append("\" rev=\"1.0\" conf=\"default->default\"/>\n");
+            }
+        }
+        if (testDependency != null) {
+            xml.append("    <dependency org=\"").append(ORGANISATION).append("\" name=\"").append(testDependency)
+                    .append("\" rev=\"1.0\" conf=\"test->default\"/>\n");
+        }
+        return xml.append("  </dependencies>\n</ivy-module>\n").toString();
+    }
+
+    private static void writeJar(File file, String name) throws IOException {
+        JarOutputStream jar = new JarOutputStream(new FileOutputStream(file));
+        try {
+            JarEntry entry = new JarEntry(ORGANISATION.replace('.', '/') + "/" + name + ".properties");
+            // A fixed timestamp, so the jars are the same every time
+            entry.setTime(0L);
+            jar.putNextEntry(entry);
+            jar.write(("module=" + name + "\n").getBytes("UTF-8"));
+            jar.closeEntry();
+        } finally {
+            jar.close();
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Can not create directory " + parent);
+        }
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+}
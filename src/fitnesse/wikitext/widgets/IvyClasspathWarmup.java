@@ -0,0 +1,216 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.ivy.util.MessageLogger;
+
+import util.StringUtil;
+
+/**
+ * Resolves all <tt>!resolve</tt> directives found in the wiki in the background, right after the plugin
+ * has been loaded. This way the first page view or test run after a restart does not have to wait for Ivy.
+ * Page requests for a classpath that is being resolved by the warm-up wait for that resolution.
+ *
+ * <p>Warm-up is enabled with the system property <tt>ivy.classpath.warmup</tt>, which should point to the
+ * wiki root directory (e.g. <tt>-Divy.classpath.warmup=FitNesseRoot</tt>). The number of threads used
+ * is set with <tt>ivy.classpath.warmup.threads</tt> (default 2).
+ *
+ * <p>Directives containing variables are skipped, since those can only be evaluated in the context of a page.
+ */
+class IvyClasspathWarmup {
+
+    static final String WARMUP_PROPERTY = "ivy.classpath.warmup";
+    static final String THREADS_PROPERTY = "ivy.classpath.warmup.threads";
+    private static final String PAGE_CONTENT = "content.txt";
+
+    private final IvyClasspathSymbolType symbolType;
+    private final File root;
+    private final MessageLogger logger;
+    private final ExecutorService executor;
+
+    IvyClasspathWarmup(IvyClasspathSymbolType symbolType, File root, int threads, MessageLogger logger) {
+        this.symbolType = symbolType;
+        this.root = root;
+        this.logger = logger;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ivy-classpath-warmup-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    static void startFromSystemProperties(IvyClasspathSymbolType symbolType) {
+        String root = System.getProperty(WARMUP_PROPERTY);
+        if (root == null || "".equals(root)) {
+            return;
+        }
+        int threads;
+        try {
+            threads = Math.max(1, Integer.parseInt(System.getProperty(THREADS_PROPERTY, "2")));
+        } catch (NumberFormatException e) {
+            threads = 2;
+        }
+        new IvyClasspathWarmup(symbolType, new File(root), threads, new IvyClasspathMessageLogger()).start();
+    }
+
+    /**
+     * Scan the wiki and queue all directives for resolution. Returns immediately.
+     */
+    void start() {
+        final List<Directive> directives = scan();
+        logger.info("Classpath warm-up: resolving " + directives.size() + " classpath(s) found in " + root);
+        // All configurations asked for of a file are resolved at once
+        for (Directive directive: directives) {
+            for (String dependencyPath: directive.dependencyPaths) {
+                symbolType.expectConfigurations(dependencyPath, directive.settingsPath, directive.configs, directive.isPom);
+            }
+        }
+        final AtomicInteger done = new AtomicInteger();
+        for (final Directive directive: directives) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        symbolType.getClasspathElements(directive.dependencyPaths, directive.settingsPath,
+                                directive.configs, directive.isPom, directive.lockPath);
+                        logger.info("Classpath warm-up: resolved " + directive + " (" + done.incrementAndGet() + "/" + directives.size() + ")");
+                    } catch (IvyClasspathException e) {
+                        logger.warn("Classpath warm-up: unable to resolve " + directive + " (" + done.incrementAndGet() + "/" + directives.size() + "): " + e.getMessage());
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+    }
+
+    boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * @return the distinct directives in the wiki, in the order they are found.
+     */
+    List<Directive> scan() {
+        Map<String, Directive> directives = new LinkedHashMap<String, Directive>();
+        scan(root, directives);
+        return new ArrayList<Directive>(directives.values());
+    }
+
+    private void scan(File dir, Map<String, Directive> directives) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file: files) {
+            if (file.isDirectory()) {
+                scan(file, directives);
+            } else if (PAGE_CONTENT.equals(file.getName())) {
+                try {
+                    scanPage(file, directives);
+                } catch (IOException e) {
+                    logger.warn("Classpath warm-up: unable to read " + file + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void scanPage(File page, Map<String, Directive> directives) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(page), "UTF-8"));
+        try {
+            boolean preformatted = false;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("{{{")) {
+                    preformatted = !line.contains("}}}");
+                } else if (preformatted) {
+                    preformatted = !line.contains("}}}");
+                } else if (line.startsWith("!resolve") && !line.contains("${")) {
+                    Directive directive = Directive.parse(line);
+                    if (directive != null) {
+                        directives.put(directive.toString(), directive);
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * The arguments of a <tt>!resolve</tt> line, interpreted like {@link IvyClasspathSymbolType#parse}.
+     */
+    static class Directive {
+        final List<String> dependencyPaths;
+        final String settingsPath;
+        final String configs;
+        final boolean isPom;
+        final String lockPath;
+
+        Directive(List<String> dependencyPaths, String settingsPath, String configs, boolean isPom, String lockPath) {
+            this.dependencyPaths = dependencyPaths;
+            this.settingsPath = settingsPath;
+            this.configs = configs;
+            this.isPom = isPom;
+            this.lockPath = lockPath;
+        }
+
+        static Directive parse(String line) {
+            String[] tokens = line.trim().split("\\s+");
+            if (!"!resolve".equals(tokens[0])) {
+                return null;
+            }
+            List<String> dependencyPaths = new ArrayList<String>(1);
+            String settingsPath = null;
+            String configs = null;
+            String lockPath = null;
+            boolean isPom = false;
+            for (int i = 1; i < tokens.length; i++) {
+                if ("-pom".equals(tokens[i])) {
+                    isPom = true;
+                } else if ("-pathing-jar".equals(tokens[i])) {
+                    // Only changes the paths handed to test systems, not the classpath
+                    continue;
+                } else if ("-s".equals(tokens[i]) && i + 1 < tokens.length) {
+                    settingsPath = settingsPath != null ? settingsPath : tokens[++i];
+                } else if ("-c".equals(tokens[i]) && i + 1 < tokens.length) {
+                    configs = configs != null ? configs : tokens[++i];
+                } else if ("-lock".equals(tokens[i]) && i + 1 < tokens.length) {
+                    lockPath = lockPath != null ? lockPath : tokens[++i];
+                } else {
+                    dependencyPaths.add(tokens[i]);
+                }
+            }
+            if (dependencyPaths.isEmpty()) {
+                dependencyPaths.add("ivy.xml");
+            }
+            return new Directive(dependencyPaths, settingsPath,
+                    configs != null ? configs : "*", isPom, lockPath);
+        }
+
+        @Override
+        public String toString() {
+            return (isPom ? "-pom " : "") + (settingsPath != null ? "-s " + settingsPath + " " : "") +
+                    "-c " + configs + " " + (lockPath != null ? "-lock " + lockPath + " " : "") + StringUtil.join(dependencyPaths, " ");
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package fitnesse.wikitext.widgets;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class IvyClasspathWarmupTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void findsResolveDirectivesInTheWiki() throws IOException {
+        write("FrontPage/content.txt", "!resolve\n");
+        write("SuitePage/content.txt", "!2 Example\n{{{\n!resolve -c test\n}}}\n" +
+                "!resolve -pom -c compile -s settings.xml pom.xml\n" +
+                "!resolve -pom ${POM_FILE}\n" +
+                "!resolve\n" +
+                "!resolve -pathing-jar -c test ivy.xml\n");
+
+        List<IvyClasspathWarmup.Directive> directives = warmup(new IvyClasspathSymbolTypeTest.CountingIvyClasspathSymbolType()).scan();
+
+        assertEquals(3, directives.size());
+        assertEquals("-c * ivy.xml", directives.get(0).toString());
+        assertEquals("-pom -s settings.xml -c compile pom.xml", directives.get(1).toString());
+        assertEquals("-c test ivy.xml", directives.get(2).toString());
+    }
+
+    @Test
+    public void resolvesDirectivesInTheBackground() throws Exception {
+        File ivyXml = write("ivy.xml", "<ivy-module version=\"2.0\">" +
+                "<info organisation=\"org.fitnesse.test\" module=\"empty\" revision=\"1.0\"/>" +
+                "<configurations><conf name=\"default\"/></configurations>" +
+                "</ivy-module>");
+        write("FrontPage/content.txt", "!resolve " + ivyXml.getPath() + "\n");
+        write("FrontPage/ChildPage/content.txt", "!resolve -c default " + ivyXml.getPath() + "\n");
+        IvyClasspathSymbolTypeTest.CountingIvyClasspathSymbolType symbolType = new IvyClasspathSymbolTypeTest.CountingIvyClasspathSymbolType();
+
+        IvyClasspathWarmup warmup = warmup(symbolType);
+        warmup.start();
+
+        assertTrue(warmup.awaitCompletion(1, TimeUnit.MINUTES));
+        assertEquals(2, symbolType.resolutions.get());
+        assertNotNull(symbolType.getCache().peek(ivyXml.getPath() + "#**#default"));
+    }
+
+    private IvyClasspathWarmup warmup(IvyClasspathSymbolType symbolType) {
+        return new IvyClasspathWarmup(symbolType, folder.getRoot(), 2, new IvyClasspathMessageLogger());
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        file.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}